@@ -0,0 +1,32 @@
+// Receives measurements from an audio component. Called on the audio thread once per block, so
+// implementations must not block, lock or allocate. Each component instance reports to its own
+// metrics from a single thread.
+interface AudioMetrics {
+  // Discards everything
+  AudioMetrics NONE = new AudioMetrics() {
+    public void block(long nanos, int samples) {}
+    public void taps(long taps, int samples) {}
+    public void gain(float minimum, int clips) {}
+    public void underrun() {}
+    public void allocated(long bytes) {}
+    public void tier(int tier) {}
+  };
+
+  // A block of samples took nanos to process.
+  void block(long nanos, int samples);
+
+  // taps delay taps were evaluated over the block.
+  void taps(long taps, int samples);
+
+  // The lowest gain applied over the block, and the number of samples that exceeded the threshold.
+  void gain(float minimum, int clips);
+
+  // A block was not ready in time.
+  void underrun();
+
+  // The audio thread allocated this many bytes over the block.
+  void allocated(long bytes);
+
+  // The quality tier the block ran at, 0 being the richest. See CpuGovernor.
+  void tier(int tier);
+}
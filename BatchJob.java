@@ -0,0 +1,14 @@
+import java.io.File;
+
+// One file to render in a batch, with the room to render it in.
+class BatchJob {
+  public final File input;
+  public final File output;
+  public final RoomPreset preset;
+
+  public BatchJob(File input, File output, RoomPreset preset) {
+    this.input = input;
+    this.output = output;
+    this.preset = preset;
+  }
+}
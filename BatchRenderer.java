@@ -0,0 +1,223 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Renders many files concurrently, each through its own independent reverb chain.
+// Usage: java BatchRenderer <input dir | manifest> <output dir> [preset] [key=value ...] [--threads=N] [--in-flight=N] [--cache=FILE]
+// A directory renders every .wav in it with the given room. A manifest lists one job per line:
+//   <input file> [preset] [key=value ...]
+// where the room on the line is applied on top of the command line room: a preset replaces its size, echo,
+// damping and tail, and keys replace single fields. Fields are separated by spaces or tabs, and a path
+// with spaces in it goes in double quotes. Blank lines and # comments are skipped. A line that doesn't
+// parse stops the batch before anything renders, naming the line.
+// Outputs are named after their inputs, so two inputs with the same file name are rejected.
+// Jobs with the same stereo width and density share tap tables through a RoomCache. With --cache, it is
+// loaded from FILE before the batch and saved back after, so later batches start warm.
+class BatchRenderer {
+  static final long CACHEBYTES = 64L << 20;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: java BatchRenderer <input dir | manifest> <output dir> [preset] [key=value ...] [--threads=N] [--in-flight=N] [--cache=FILE]");
+      System.exit(2);
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    int inFlight = -1;
+    File cacheFile = null;
+    List<String> roomArgs = new ArrayList<String>();
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].startsWith("--threads=")) {
+        threads = Integer.parseInt(args[i].substring(10));
+      } else if (args[i].startsWith("--in-flight=")) {
+        inFlight = Integer.parseInt(args[i].substring(12));
+      } else if (args[i].startsWith("--cache=")) {
+        cacheFile = new File(args[i].substring(8));
+      } else {
+        roomArgs.add(args[i]);
+      }
+    }
+    if (inFlight < 0) {
+      inFlight = threads * 2;
+    }
+    RoomPreset preset = RoomPreset.parse(roomArgs.toArray(new String[0]), 0);
+    File output = new File(args[1]);
+    output.mkdirs();
+
+    List<BatchJob> jobs;
+    try {
+      jobs = listJobs(new File(args[0]), output, preset);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+    RoomCache cache = cacheFile == null ? new RoomCache(CACHEBYTES) : RoomCache.load(cacheFile, CACHEBYTES);
+    System.out.println("Rendering " + jobs.size() + " files on " + threads + " threads");
+    render(jobs, threads, inFlight, cache);
+    System.out.println(cache);
+    if (cacheFile != null) {
+      cache.save(cacheFile);
+    }
+  }
+
+  // Renders every job on a work-stealing pool of the given size. At most inFlight jobs are queued or
+  // running at once; beyond that, submission blocks, so files are only opened as threads free up.
+  // Returns the stats of the jobs that succeeded; failures are reported and skipped.
+  public static List<RenderStats> render(List<BatchJob> jobs, int threads, int inFlight) throws InterruptedException {
+    return render(jobs, threads, inFlight, null);
+  }
+
+  // As above, sharing tap tables between jobs through cache, if given.
+  public static List<RenderStats> render(List<BatchJob> jobs, int threads, int inFlight, final RoomCache cache) throws InterruptedException {
+    final ConcurrentLinkedQueue<RenderStats> results = new ConcurrentLinkedQueue<RenderStats>();
+    final AtomicInteger failures = new AtomicInteger();
+    final Semaphore permits = new Semaphore(Math.max(inFlight, threads));
+    ForkJoinPool pool = new ForkJoinPool(threads);
+
+    long start = System.nanoTime();
+    for (final BatchJob job : jobs) {
+      permits.acquire();
+      pool.execute(() -> {
+        try {
+          RenderStats stats = OfflineRenderer.render(job.input, job.output, job.preset, OfflineRenderer.BLOCKSIZE, cache);
+          results.add(stats);
+          System.out.println(stats);
+        } catch (Exception e) {
+          failures.incrementAndGet();
+          System.err.println(job.input + ": " + e);
+        } finally {
+          permits.release();
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    long nanos = System.nanoTime() - start;
+
+    // Aggregate throughput, over the wall time of the whole batch
+    double audioSeconds = 0;
+    long frames = 0;
+    for (RenderStats stats : results) {
+      audioSeconds += stats.frames / (double)stats.sampleRate;
+      frames += stats.frames;
+    }
+    double seconds = nanos / 1e9;
+    System.out.println(String.format(Locale.US,
+      "Batch: %d rendered, %d failed, %.2f s of audio in %.3f s, %.1fx real time, %.0f samples/s",
+      results.size(), failures.get(), audioSeconds, seconds, audioSeconds / seconds, frames / seconds));
+    return new ArrayList<RenderStats>(results);
+  }
+
+  // Lists the jobs for a directory of .wav files or a manifest file. Throws IllegalArgumentException,
+  // prefixed with the manifest and line number, for a line that doesn't parse or clashes with another.
+  public static List<BatchJob> listJobs(File input, File outputDir, RoomPreset preset) throws IOException {
+    List<BatchJob> jobs = new ArrayList<BatchJob>();
+    HashMap<File, File> outputs = new HashMap<File, File>();
+    if (input.isDirectory()) {
+      File[] files = input.listFiles();
+      Arrays.sort(files);
+      for (File file : files) {
+        if (file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".wav")) {
+          addJob(jobs, outputs, new BatchJob(file, new File(outputDir, file.getName()), preset));
+        }
+      }
+      return jobs;
+    }
+
+    BufferedReader reader = new BufferedReader(new FileReader(input));
+    try {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          List<String> fields = fields(line);
+          File file = new File(fields.get(0));
+          if (!file.isAbsolute()) {
+            file = new File(input.getAbsoluteFile().getParentFile(), fields.get(0));
+          }
+          RoomPreset room = preset.copy();
+          for (int i = 1; i < fields.size(); i++) {
+            String field = fields.get(i);
+            int split = field.indexOf('=');
+            if (split < 0) {
+              try {
+                room = room.withNamed(field);
+              } catch (IllegalArgumentException e) {
+                // Most likely the rest of a path with spaces
+                throw line.indexOf('"') < 0 ? new IllegalArgumentException(e.getMessage() + " (quote paths with spaces)") : e;
+              }
+            } else {
+              room.set(field.substring(0, split), field.substring(split + 1));
+            }
+          }
+          addJob(jobs, outputs, new BatchJob(file, new File(outputDir, file.getName()), room));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(input + ":" + number + ": " + e.getMessage(), e);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return jobs;
+  }
+
+  // Splits a manifest line into fields at runs of spaces and tabs. A field in double quotes runs to the
+  // closing quote and may hold spaces; there are no escapes, so it can't hold a quote itself.
+  static List<String> fields(String line) {
+    List<String> fields = new ArrayList<String>();
+    int i = 0;
+    while (i < line.length()) {
+      char c = line.charAt(i);
+      if (c == ' ' || c == '\t') {
+        i++;
+        continue;
+      }
+      int end;
+      if (c == '"') {
+        end = line.indexOf('"', i + 1);
+        if (end < 0) {
+          throw new IllegalArgumentException("Unterminated quote");
+        }
+        fields.add(line.substring(i + 1, end));
+        end++;
+        if (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '\t') {
+          throw new IllegalArgumentException("Expected a space after the closing quote");
+        }
+      } else {
+        end = i;
+        while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '\t') {
+          end++;
+        }
+        fields.add(line.substring(i, end));
+      }
+      i = end;
+    }
+    return fields;
+  }
+
+  // Adds job, unless another job already renders to its output. Jobs run in parallel, so the two would
+  // overwrite each other.
+  private static void addJob(List<BatchJob> jobs, HashMap<File, File> outputs, BatchJob job) {
+    File previous = outputs.put(job.output, job.input);
+    if (previous != null) {
+      throw new IllegalArgumentException(previous + " and " + job.input + " would both render to " + job.output);
+    }
+    jobs.add(job);
+  }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+// A bank of biquad filters that run in lockstep, one per lane.
+// Coefficients and history are kept as structure-of-arrays, and the inner loop runs across lanes,
+// so the JIT can vectorise it. Each lane takes its coefficients from any BiquadComponent design.
+class BiquadBank {
+  private final int lanes;
+  // Normalised coefficients, one entry per lane
+  private final double[] b0, b1, b2, a1, a2;
+  // History, one entry per lane
+  private final double[] x1, x2, y1, y2;
+
+  public BiquadBank(int lanes){
+    if(lanes < 1){
+      throw new IllegalArgumentException("Biquad bank needs at least one lane: "+lanes);
+    }
+    this.lanes = lanes;
+    this.b0 = new double[lanes];
+    this.b1 = new double[lanes];
+    this.b2 = new double[lanes];
+    this.a1 = new double[lanes];
+    this.a2 = new double[lanes];
+    this.x1 = new double[lanes];
+    this.x2 = new double[lanes];
+    this.y1 = new double[lanes];
+    this.y2 = new double[lanes];
+    // Start every lane as a pass-through
+    Arrays.fill(b0, 1);
+  }
+
+  // Copies the current coefficients of a design into one lane. The lane's history is kept.
+  public void setCoefficients(int lane, BiquadComponent design){
+    b0[lane] = design.b0;
+    b1[lane] = design.b1;
+    b2[lane] = design.b2;
+    a1[lane] = design.a1;
+    a2[lane] = design.a2;
+  }
+
+  // Copies the current coefficients of a design into every lane.
+  public void setCoefficients(BiquadComponent design){
+    for(int lane = 0; lane < lanes; lane++){
+      setCoefficients(lane, design);
+    }
+  }
+
+  // Processes n frames of interleaved audio, where sample i of lane l is at [i * lanes + l].
+  // in and out may be the same array.
+  public void process(float[] in, float[] out, int n){
+    double[] b0 = this.b0, b1 = this.b1, b2 = this.b2, a1 = this.a1, a2 = this.a2;
+    double[] x1 = this.x1, x2 = this.x2, y1 = this.y1, y2 = this.y2;
+    int lanes = this.lanes;
+    for(int i = 0; i < n; i++){
+      int frame = i * lanes;
+      for(int l = 0; l < lanes; l++){
+        double x = in[frame + l];
+        double y = (b0[l] * x) + (b1[l] * x1[l]) + (b2[l] * x2[l]) - (a1[l] * y1[l]) - (a2[l] * y2[l]);
+        x2[l] = x1[l];
+        x1[l] = x;
+        y2[l] = y1[l];
+        y1[l] = y;
+        out[frame + l] = (float)y;
+      }
+    }
+  }
+
+  // Clears the history of every lane.
+  public void reset(){
+    Arrays.fill(x1, 0);
+    Arrays.fill(x2, 0);
+    Arrays.fill(y1, 0);
+    Arrays.fill(y2, 0);
+  }
+
+  public int getLanes(){
+    return lanes;
+  }
+}
@@ -1,6 +1,4 @@
 import java.lang.Math.*;
-import java.util.HashMap;
-import java.util.ArrayList;
 
 // Biquad filter for use within other audio components.
 // Supports lowpass, highpass, shelving bandpass, and peaking bandpass.
@@ -18,9 +16,11 @@ class BiquadComponent {
   private int type;
   private float sampleRate;
   private float frequency, gain, s;
-  private HashMap<Object, ArrayList<Double>> memory;
-  private double a0, a1, a2;
-  private double b0, b1, b2;
+  // Coefficients are stored normalised by a0, and read directly by each BiquadState.
+  double a1, a2;
+  double b0, b1, b2;
+  // Bumped every time the coefficients change
+  private int version;
   
   public BiquadComponent(int type, float sampleRate, float frequency, float gain, float s){
     // check range
@@ -32,32 +32,13 @@ class BiquadComponent {
     this.frequency = frequency;
     this.gain = gain;
     this.s = s;
-    this.memory = new HashMap<Object, ArrayList<Double>>();
     calculateCoeffs();
   }
   
-  
-  public float calculate(float x, Object source){
-    ArrayList<Double> history = memory.get(source);
-    double y = (1 / a0) * ((b0 * x) + (b1 * history.get(0)) + (b2 * history.get(1)) - (a1 * history.get(2)) - (a2 * history.get(3)));
-    history.set(1, history.get(0));
-    history.set(0, (double)x);
-    history.set(3, history.get(2));
-    history.set(2, y);
-    return (float)y;
-  }
-  
-  public BiquadComponent register(Object accessor){
-    ArrayList<Double> list = new ArrayList<Double>();
-    for( int i = 0; i < 4; i++){
-      list.add(0.0d);
-    }
-    memory.put(accessor, list);
-    return this;
-  }
-  
-  public void unregister(Object accessor){
-    memory.remove(accessor);
+  // Creates a new filter state that runs on this filter's shared coefficients.
+  // Each signal path filtered by this component needs its own state.
+  public BiquadState register(){
+    return new BiquadState(this);
   }
   
   // Q, BW, S
@@ -102,6 +83,8 @@ class BiquadComponent {
     }
     
     // Calculate the actual coefficients.
+    double a0 = 1, a1 = 0, a2 = 0;
+    double b0 = 1, b1 = 0, b2 = 0;
     switch (type) {
       case 0: // Low pass filter
         b0 = (1-Math.cos(w0)) / 2;
@@ -161,7 +144,33 @@ class BiquadComponent {
         break;
     }
     
-    
-    
+    // Fold the normalisation into the coefficients so the states don't divide per sample.
+    double norm = 1 / a0;
+    this.b0 = b0 * norm;
+    this.b1 = b1 * norm;
+    this.b2 = b2 * norm;
+    this.a1 = a1 * norm;
+    this.a2 = a2 * norm;
+    version++;
+  }
+  
+  public int getVersion(){
+    return version;
+  }
+
+  public float getFrequency(){
+    return frequency;
+  }
+
+  public int getType(){
+    return type;
+  }
+
+  public float getGain(){
+    return gain;
+  }
+
+  public float getS(){
+    return s;
   }
 }
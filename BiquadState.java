@@ -0,0 +1,59 @@
+// Per-path history of a BiquadComponent.
+// Coefficients stay on the shared component, so changing its frequency affects every state.
+class BiquadState {
+  private final BiquadComponent filter;
+  private double x1, x2;
+  private double y1, y2;
+
+  BiquadState(BiquadComponent filter){
+    this.filter = filter;
+  }
+
+  public float calculate(float x){
+    BiquadComponent f = filter;
+    double y = (f.b0 * x) + (f.b1 * x1) + (f.b2 * x2) - (f.a1 * y1) - (f.a2 * y2);
+    x2 = x1;
+    x1 = x;
+    y2 = y1;
+    y1 = y;
+    return (float)y;
+  }
+
+  // Block counterpart of calculate(). in and out may be the same array.
+  public void process(float[] in, float[] out, int n){
+    process(in, out, 0, n);
+  }
+
+  public void process(float[] in, float[] out, int off, int n){
+    BiquadComponent f = filter;
+    double b0 = f.b0, b1 = f.b1, b2 = f.b2;
+    double a1 = f.a1, a2 = f.a2;
+    double x1 = this.x1, x2 = this.x2;
+    double y1 = this.y1, y2 = this.y2;
+    for(int i = off; i < off + n; i++){
+      double x = in[i];
+      double y = (b0 * x) + (b1 * x1) + (b2 * x2) - (a1 * y1) - (a2 * y2);
+      x2 = x1;
+      x1 = x;
+      y2 = y1;
+      y1 = y;
+      out[i] = (float)y;
+    }
+    this.x1 = x1;
+    this.x2 = x2;
+    this.y1 = y1;
+    this.y2 = y2;
+  }
+
+  // Clears the history, as if the filter had only ever seen silence.
+  public void reset(){
+    x1 = 0;
+    x2 = 0;
+    y1 = 0;
+    y2 = 0;
+  }
+
+  public BiquadComponent getFilter(){
+    return filter;
+  }
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// A fixed set of helper threads that run one block's worth of independent tasks alongside the caller.
+// run() hands out the tasks, takes a share itself, and returns once every task of the block is done.
+// Tasks are claimed from a shared counter, so idle threads take over work from busy ones.
+// Nothing is allocated per block. A task that throws on a helper is rethrown from run() once the block
+// is done, as one thrown on the caller would be.
+class BlockWorkers {
+  private final Thread[] threads;
+
+  // The current block, published by the volatile write to generation
+  private Runnable[] tasks;
+  private int taskCount;
+  private final AtomicInteger next;
+  private final AtomicInteger pending;
+  private volatile int generation;
+  private volatile Thread caller;
+  private volatile boolean running;
+  // First task failure on a helper in the current block
+  private final AtomicReference<Throwable> failure;
+
+  // Tasks run by a thread other than the one they would be statically assigned to
+  private final AtomicLong steals;
+
+  // Creates a pool with the given number of helper threads. The calling thread always works too,
+  // so helpers = cores - 1 keeps every core busy.
+  public BlockWorkers(int helpers) {
+    this.threads = new Thread[helpers];
+    this.next = new AtomicInteger();
+    this.pending = new AtomicInteger();
+    this.steals = new AtomicLong();
+    this.failure = new AtomicReference<Throwable>();
+    this.running = true;
+    // Taken here rather than on the helper, which might only read it after the first block has begun
+    final int start = generation;
+    for (int i = 0; i < helpers; i++) {
+      final int worker = i + 1;
+      threads[i] = new Thread(() -> loop(worker, start), "BlockWorkers-" + worker);
+      threads[i].setDaemon(true);
+      threads[i].setPriority(Thread.MAX_PRIORITY);
+      threads[i].start();
+    }
+  }
+
+  // Runs tasks[0, count) and waits for all of them.
+  public void run(Runnable[] tasks, int count) {
+    if (threads.length == 0 || count <= 1) {
+      for (int i = 0; i < count; i++) {
+        tasks[i].run();
+      }
+      return;
+    }
+    this.tasks = tasks;
+    this.taskCount = count;
+    this.caller = Thread.currentThread();
+    pending.set(threads.length);
+    next.set(0);
+    generation++;
+    for (Thread thread : threads) {
+      LockSupport.unpark(thread);
+    }
+    Throwable failed;
+    try {
+      work(0);
+    } finally {
+      // Every helper has to finish this block before the next one may be started
+      while (pending.get() != 0) {
+        LockSupport.park(this);
+      }
+      failed = failure.getAndSet(null);
+    }
+    if (failed instanceof Error) {
+      throw (Error)failed;
+    } else if (failed != null) {
+      throw (RuntimeException)failed;
+    }
+  }
+
+  // Number of threads that take part in each block, including the caller.
+  public int getParallelism() {
+    return threads.length + 1;
+  }
+
+  public long getSteals() {
+    return steals.get();
+  }
+
+  // Stops the helper threads. The pool can't be used afterwards.
+  public void close() {
+    running = false;
+    for (Thread thread : threads) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void work(int worker) {
+    Runnable[] tasks = this.tasks;
+    int count = this.taskCount;
+    int parallelism = threads.length + 1;
+    long stolen = 0;
+    int i;
+    while ((i = next.getAndIncrement()) < count) {
+      tasks[i].run();
+      if (i % parallelism != worker) {
+        stolen++;
+      }
+    }
+    if (stolen > 0) {
+      steals.addAndGet(stolen);
+    }
+  }
+
+  private void loop(int worker, int seen) {
+    while (running) {
+      int current = generation;
+      if (current == seen) {
+        LockSupport.park(this);
+        continue;
+      }
+      seen = current;
+      try {
+        work(worker);
+      } catch (RuntimeException | Error e) {
+        // Kept for run() to rethrow, and the helper stays alive for the next block
+        failure.compareAndSet(null, e);
+      } finally {
+        if (pending.decrementAndGet() == 0) {
+          LockSupport.unpark(caller);
+        }
+      }
+    }
+  }
+}
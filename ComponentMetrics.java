@@ -0,0 +1,175 @@
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Keeps running totals of the metrics of one component and exposes them over JMX.
+// Only the audio thread writes, so every update is a plain store to a volatile field: no locks, no
+// retries, and readers on other threads always see whole values. A reset from JMX is a request that
+// the audio thread carries out at its next block.
+public class ComponentMetrics implements AudioMetrics, ComponentMetricsMBean {
+  private final float sampleRate;
+  private volatile long blocks;
+  private volatile long samples;
+  private volatile long totalNanos;
+  private volatile long minNanos;
+  private volatile long maxNanos;
+  private volatile long taps;
+  private volatile long tapSamples;
+  private volatile float gain;
+  private volatile float minGain;
+  private volatile long clips;
+  private volatile long underruns;
+  private volatile long allocatedBytes;
+  private volatile int tier;
+  private volatile long tierChanges;
+  private volatile boolean resetRequested;
+
+  public ComponentMetrics(float sampleRate) {
+    this.sampleRate = sampleRate;
+    clear();
+  }
+
+  // Registers these metrics with the platform MBean server as reverb:type=<type>,name=<name>.
+  public ComponentMetrics register(String type, String name) {
+    try {
+      ObjectName objectName = new ObjectName("reverb:type=" + type + ",name=" + ObjectName.quote(name));
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      }
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not register metrics for " + type + " " + name, e);
+    }
+    return this;
+  }
+
+  public void block(long nanos, int samples) {
+    if (resetRequested) {
+      clear();
+      resetRequested = false;
+    }
+    this.blocks = blocks + 1;
+    this.samples = this.samples + samples;
+    this.totalNanos = totalNanos + nanos;
+    if (nanos < minNanos) {
+      this.minNanos = nanos;
+    }
+    if (nanos > maxNanos) {
+      this.maxNanos = nanos;
+    }
+  }
+
+  public void taps(long taps, int samples) {
+    this.taps = this.taps + taps;
+    this.tapSamples = tapSamples + samples;
+  }
+
+  public void gain(float minimum, int clips) {
+    this.gain = minimum;
+    if (minimum < minGain) {
+      this.minGain = minimum;
+    }
+    this.clips = this.clips + clips;
+  }
+
+  public void underrun() {
+    this.underruns = underruns + 1;
+  }
+
+  public void allocated(long bytes) {
+    this.allocatedBytes = allocatedBytes + bytes;
+  }
+
+  public void tier(int tier) {
+    if (tier != this.tier) {
+      this.tierChanges = tierChanges + 1;
+      this.tier = tier;
+    }
+  }
+
+  public long getBlocks() {
+    return blocks;
+  }
+
+  public long getSamples() {
+    return samples;
+  }
+
+  public double getMinBlockMicros() {
+    return blocks == 0 ? 0 : minNanos / 1000.0;
+  }
+
+  public double getMeanBlockMicros() {
+    long blocks = this.blocks;
+    return blocks == 0 ? 0 : totalNanos / 1000.0 / blocks;
+  }
+
+  public double getMaxBlockMicros() {
+    return maxNanos / 1000.0;
+  }
+
+  public double getLoad() {
+    long samples = this.samples;
+    return samples == 0 ? 0 : totalNanos / (samples / sampleRate * 1e9);
+  }
+
+  public double getTapsPerSample() {
+    long samples = tapSamples;
+    return samples == 0 ? 0 : taps / (double)samples;
+  }
+
+  public float getGain() {
+    return gain;
+  }
+
+  public float getMinGain() {
+    return minGain;
+  }
+
+  public long getClips() {
+    return clips;
+  }
+
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public int getTier() {
+    return tier;
+  }
+
+  public long getTierChanges() {
+    return tierChanges;
+  }
+
+  public void reset() {
+    resetRequested = true;
+  }
+
+  public String toString() {
+    return String.format(java.util.Locale.US,
+      "%d blocks, %.1f/%.1f/%.1f us per block (min/mean/max), load %.3f, %.1f taps/sample, gain %.3f (min %.3f), %d clips, %d underruns, %d bytes allocated, tier %d (%d changes)",
+      getBlocks(), getMinBlockMicros(), getMeanBlockMicros(), getMaxBlockMicros(), getLoad(), getTapsPerSample(),
+      getGain(), getMinGain(), getClips(), getUnderruns(), getAllocatedBytes(), getTier(), getTierChanges());
+  }
+
+  private void clear() {
+    blocks = 0;
+    samples = 0;
+    totalNanos = 0;
+    minNanos = Long.MAX_VALUE;
+    maxNanos = 0;
+    taps = 0;
+    tapSamples = 0;
+    gain = 1;
+    minGain = 1;
+    clips = 0;
+    underruns = 0;
+    allocatedBytes = 0;
+    tierChanges = 0;
+  }
+}
@@ -0,0 +1,20 @@
+// JMX view of a ComponentMetrics. JMX only accepts public MBean interfaces.
+public interface ComponentMetricsMBean {
+  long getBlocks();
+  long getSamples();
+  double getMinBlockMicros();
+  double getMeanBlockMicros();
+  double getMaxBlockMicros();
+  // Mean load on the audio thread, as processing time over the real time of the audio processed
+  double getLoad();
+  double getTapsPerSample();
+  float getGain();
+  float getMinGain();
+  long getClips();
+  long getUnderruns();
+  long getAllocatedBytes();
+  // Quality tier the governor last reported, and how often it has changed
+  int getTier();
+  long getTierChanges();
+  void reset();
+}
@@ -0,0 +1,127 @@
+// Keeps the reverb inside its CPU budget by moving along a ladder of QualityTiers. It takes the place
+// of the metrics of an EngineMonitor, so it hears how long every frame took, and compares that with the
+// frame's own duration. When the smoothed load passes HIGH, or a frame underruns, it steps down to a
+// cheaper tier; once the load has stayed under LOW for a while it steps back up. Switches happen on the
+// audio thread between frames: the reverb crossfades between tiers and the reflections crossfade as for
+// a size change.
+//
+// Hysteresis: LOW is under half of HIGH, and each tier costs at most about twice the one below, so a
+// step up lands below HIGH. No decision is taken while a switch settles, and a step up that has to be
+// undone within the wait doubles the wait before the next one.
+//
+// Everything it hears is passed on to metrics, along with the tier of every frame.
+class CpuGovernor implements AudioMetrics {
+  static final float HIGH = 0.7f;
+  static final float LOW = 0.3f;
+  // Time constant of the smoothed load, in seconds
+  private static final float SMOOTHING = 0.2f;
+  // Seconds without decisions after a switch, and under LOW before stepping up, at first and at most
+  private static final float SETTLE = 0.5f;
+  private static final float HOLD = 3;
+  private static final float MAXHOLD = 60;
+
+  private final float sampleRate;
+  private final EarlyReflections reflections;
+  private final ModularReverb reverb;
+  private final QualityTier[] tiers;
+  private final AudioMetrics metrics;
+
+  // Audio thread state. Times are in samples.
+  private int tier;
+  private float load;
+  private long settle;
+  private long below;
+  private long hold;
+  // Time since the last step, and whether it was up
+  private long sinceStep;
+  private boolean steppedUp;
+
+  // Builds the tiers of reverb and starts on the first (richest) one. Allocates, so create it before
+  // processing starts.
+  public CpuGovernor(float sampleRate, EarlyReflections reflections, ModularReverb reverb, QualityTier[] tiers, AudioMetrics metrics) {
+    this.sampleRate = sampleRate;
+    this.reflections = reflections;
+    this.reverb = reverb;
+    this.tiers = tiers;
+    this.metrics = metrics;
+    this.hold = (long)(HOLD * sampleRate);
+    reverb.setTiers(tiers);
+    // The richest order first, so the reflections' line is already long enough for every tier
+    reflections.setOrder(tiers[0].order);
+  }
+
+  public void block(long nanos, int samples) {
+    metrics.block(nanos, samples);
+    float blockLoad = (float)(nanos / (samples / sampleRate * 1e9));
+    load += (blockLoad - load) * (float)(1 - Math.exp(-samples / (SMOOTHING * sampleRate)));
+    sinceStep += samples;
+    below = load < LOW ? below + samples : 0;
+    if (settle > 0) {
+      settle -= samples;
+    } else if (load > HIGH) {
+      step(tier + 1);
+    } else if (below >= hold) {
+      step(tier - 1);
+    }
+    metrics.tier(tier);
+  }
+
+  public void taps(long taps, int samples) {
+    metrics.taps(taps, samples);
+  }
+
+  public void gain(float minimum, int clips) {
+    metrics.gain(minimum, clips);
+  }
+
+  // A late frame is a dropout already, so it steps down without waiting for the smoothed load.
+  public void underrun() {
+    metrics.underrun();
+    if (settle <= 0) {
+      step(tier + 1);
+    }
+  }
+
+  public void allocated(long bytes) {
+    metrics.allocated(bytes);
+  }
+
+  public void tier(int tier) {
+    metrics.tier(tier);
+  }
+
+  private void step(int next) {
+    if (next < 0 || next >= tiers.length) {
+      return;
+    }
+    if (next > tier && steppedUp && sinceStep < hold) {
+      // The tier above didn't fit after all, so wait longer before trying it again
+      hold = Math.min(hold * 2, (long)(MAXHOLD * sampleRate));
+    }
+    steppedUp = next < tier;
+    sinceStep = 0;
+    tier = next;
+    reverb.setTier(next);
+    reflections.fadeToOrder(tiers[next].order);
+    settle = (long)(SETTLE * sampleRate);
+    below = 0;
+  }
+
+  public int getTier() {
+    return tier;
+  }
+
+  public QualityTier getQuality() {
+    return tiers[tier];
+  }
+
+  // Smoothed load: processing time over the real time of the audio processed.
+  public float getLoad() {
+    return load;
+  }
+
+  // Seconds the load has to stay under LOW before a step up.
+  public float getHold() {
+    return hold / sampleRate;
+  }
+}
@@ -0,0 +1,149 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+// Circular delay line kept off the Java heap, so long tails and large rooms don't add to what the
+// garbage collector scans. The length is the next power of two above the longest delay, and indices
+// wrap with a mask.
+//
+// The memory is freed by close(), or by the collector if the line is dropped without closing it.
+// Nothing may read or write the line once close() has started.
+class DelayLine implements AutoCloseable {
+  // Frees direct buffers straight away, where the JDK allows it
+  private static final Object UNSAFE;
+  private static final Method INVOKECLEANER;
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Exception e) {
+      // Left to the collector
+    }
+    UNSAFE = unsafe;
+    INVOKECLEANER = invokeCleaner;
+  }
+
+  private ByteBuffer memory;
+  // Read directly by the tap loops, which index with (position - delay) & mask
+  FloatBuffer samples;
+  int mask;
+  // Position the next sample is written to
+  int position;
+
+  // A line long enough to read every delay up to maxDelay samples.
+  public DelayLine(int maxDelay) {
+    allocate(capacity(maxDelay));
+  }
+
+  // The power of two length needed to hold delays up to maxDelay samples.
+  static int capacity(int maxDelay) {
+    return Integer.highestOneBit(Math.max(maxDelay, 1)) << 1;
+  }
+
+  private void allocate(int length) {
+    memory = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder());
+    samples = memory.asFloatBuffer();
+    mask = length - 1;
+  }
+
+  // Lengthens the line to hold delays up to maxDelay samples, keeping the samples it holds.
+  // Allocates, so call it off the audio thread or accept one slow block.
+  public void ensure(int maxDelay) {
+    int length = capacity(maxDelay);
+    if (length <= mask + 1) {
+      return;
+    }
+    ByteBuffer oldMemory = memory;
+    FloatBuffer old = samples;
+    int oldLength = mask + 1;
+    allocate(length);
+    // Unroll the old ring so the latest sample is still just behind the write position
+    for (int i = 1; i <= oldLength; i++) {
+      samples.put((position - i) & mask, old.get((position - i) & (oldLength - 1)));
+    }
+    free(oldMemory);
+  }
+
+  public int length() {
+    return mask + 1;
+  }
+
+  // Writes a sample at the write position and advances it.
+  public void write(float sample) {
+    samples.put(position, sample);
+    position = (position + 1) & mask;
+  }
+
+  // Writes n samples from in, starting at off.
+  public void write(float[] in, int off, int n) {
+    for (int j = 0; j < n; j++) {
+      samples.put(position, in[off + j]);
+      position = (position + 1) & mask;
+    }
+  }
+
+  // The sample written delay samples before the given position. position itself may run ahead of
+  // the write position, as long as everything it reaches has been written.
+  public float get(int position, int delay) {
+    return samples.get((position - delay) & mask);
+  }
+
+  // The sample written delay samples before the write position.
+  public float get(int delay) {
+    return samples.get((position - delay) & mask);
+  }
+
+  // Wraps a position that has run past the end of the line.
+  public int wrap(int position) {
+    return position & mask;
+  }
+
+  // Replaces the contents with those of other, which must be no longer, as if this line had heard the
+  // same input. Samples older than other holds are silent. Takes over other's write position, so the
+  // copy is two bulk moves.
+  public void copyFrom(DelayLine other) {
+    int length = mask + 1;
+    int start = other.position;
+    // Samples before the write position, then the older ones at the end of the other ring
+    int older = other.mask + 1 - start;
+    samples.put(0, other.samples, 0, start);
+    for (int i = start; i < length - older; i++) {
+      samples.put(i, 0);
+    }
+    samples.put(length - older, other.samples, start, older);
+    position = start;
+  }
+
+  public void clear() {
+    for (int i = 0; i <= mask; i++) {
+      samples.put(i, 0);
+    }
+    position = 0;
+  }
+
+  // Frees the memory now rather than when the line is collected.
+  public void close() {
+    ByteBuffer old = memory;
+    memory = null;
+    samples = null;
+    free(old);
+  }
+
+  private static void free(ByteBuffer memory) {
+    if (memory == null || INVOKECLEANER == null) {
+      return;
+    }
+    try {
+      INVOKECLEANER.invoke(UNSAFE, memory);
+    } catch (Exception e) {
+      // Left to the collector
+    }
+  }
+}
@@ -1,7 +1,10 @@
 import beads.*;
 import java.lang.Math.*;
 
-class Ducker extends Function {
+// Keeps the signal under full scale. By default it ducks: the first over-threshold sample sets the gain,
+// which ramps down over the delay line and recovers after a sustain. setLimiter() switches it to a
+// look-ahead limiter that never lets a (true) peak through.
+class Ducker extends UGen {
   private float[] buffer;
   private int bufferIndex;
   private float gain;
@@ -11,9 +14,43 @@ class Ducker extends Function {
   private int sustain;
   private float decay;
 
+  // Look-ahead limiter, in use once buffers are allocated by setLimiter()
+  private boolean limiting;
+  private float threshold;
+  private int lookAhead;
+  private int window;
+  private float release;
+  // Delay line of lookAhead samples
+  private float[] delayed;
+  private int delayedIndex;
+  // Monotonic deque of (sample number, required gain): the sliding minimum over the window
+  private int[] minTimes;
+  private float[] minGains;
+  private int minHead, minCount;
+  private int time;
+  // Moving average of the held gain over the attack
+  private float[] held;
+  private int heldIndex;
+  private double heldSum;
+  private float limitGain;
+  // Inter-sample peak detection: the last three inputs and the interpolation weights of each phase
+  private float[][] phases;
+  private float x1, x2, x3;
+
+  private AudioMetrics metrics = AudioMetrics.NONE;
+  private Meter meter;
+  // Lowest gain and over-threshold samples of the block being processed
+  private float blockMinGain;
+  private int blockClips;
+
   // Create a Ducker with a given target maximum value
   public Ducker(UGen input) {
-    super(input);
+    this(input.getContext());
+    addInput(input);
+  }
+
+  public Ducker(AudioContext context) {
+    super(context, 1, 1);
     this.gain = 1;
     this.targetGain = 1;
     this.delaySinceClip = 0;
@@ -23,64 +60,241 @@ class Ducker extends Function {
     this.buffer = new float[attack];
   }
 
-  public float calculate() {
-    // Gather input
-    float input = processInput();
-    // Detect clipping, and set target gain accordingly.
-    if (input * targetGain > 1.0) {
-      this.targetGain = 1.0f / input;
-      this.delaySinceClip = 0;
+  public void calculateBuffer() {
+    process(bufIn[0], bufOut[0], bufferSize);
+  }
+
+  // Switches to look-ahead limiting, delaying the signal by lookAhead samples.
+  // The gain ramps down over attack samples (at most the look-ahead) before a peak, holds for sustain
+  // samples after it, then recovers with a time constant of release seconds. With oversample above 1,
+  // peaks between samples are estimated at that many points per sample and limited as well.
+  // Allocates, so call it before processing starts.
+  public void setLimiter(float threshold, int lookAhead, int attack, int sustain, float release, int oversample) {
+    this.threshold = threshold;
+    this.lookAhead = Math.max(lookAhead, oversample > 1 ? 2 : 1);
+    // Inter-sample peaks are detected up to two samples late, which costs the attack two samples
+    int attackLimit = oversample > 1 ? this.lookAhead - 1 : this.lookAhead + 1;
+    attack = Math.min(Math.max(attack, 1), attackLimit);
+    this.window = this.lookAhead + 1 + Math.max(sustain, 0);
+    this.release = (float)(1 - Math.exp(-1 / (Math.max(release, 1e-6f) * context.getSampleRate())));
+    this.delayed = new float[this.lookAhead];
+    this.minTimes = new int[window];
+    this.minGains = new float[window];
+    this.held = new float[attack];
+    this.phases = new float[Math.max(oversample, 1) - 1][];
+    for (int p = 0; p < phases.length; p++) {
+      phases[p] = cubicWeights((p + 1) / (float)oversample);
+    }
+    this.limiting = true;
+    resetLimiter();
+  }
+
+  // Goes back to ducking.
+  public void setDucker() {
+    this.limiting = false;
+  }
+
+  public boolean isLimiting() {
+    return limiting;
+  }
+
+  // Samples of delay the current mode adds.
+  public int getLatency() {
+    return limiting ? lookAhead : attack;
+  }
+
+  public float getGain() {
+    return limiting ? limitGain : gain;
+  }
+
+  private void resetLimiter() {
+    java.util.Arrays.fill(delayed, 0);
+    java.util.Arrays.fill(held, 1);
+    delayedIndex = 0;
+    heldIndex = 0;
+    heldSum = held.length;
+    minHead = 0;
+    minCount = 0;
+    time = 0;
+    limitGain = 1;
+    x1 = x2 = x3 = 0;
+  }
+
+  // Processes a block of input. in and out may be the same array.
+  public void process(float[] in, float[] out, int n) {
+    long start = metrics == AudioMetrics.NONE ? 0 : System.nanoTime();
+    blockMinGain = getGain();
+    blockClips = 0;
+    if (limiting) {
+      limit(in, out, n);
+    } else {
+      duck(in, out, n);
     }
-    // Modify real gain towards or away from target gain.
-    if (gain != targetGain) {
-      // Gain needs to be modified
-      if (gain > targetGain) {
-        // Use attack velocity
-        float velocity = (targetGain - 1) / attack; // Should be negative
-        if((gain+velocity) < targetGain){
-          gain = targetGain;
+    if (metrics != AudioMetrics.NONE) {
+      metrics.gain(blockMinGain, blockClips);
+      metrics.block(System.nanoTime() - start, n);
+    }
+    if (meter != null) {
+      meter.gain(blockMinGain);
+    }
+  }
+
+  // Reports block timing, gain reduction and clips to metrics.
+  public void setMetrics(AudioMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  // Reports the lowest gain of each block to meter, which must be fed from the same thread.
+  public void setMeter(Meter meter) {
+    this.meter = meter;
+  }
+
+  private void duck(float[] in, float[] out, int n) {
+    float minGain = blockMinGain;
+    int clips = 0;
+    for (int i = 0; i < n; i++) {
+      // Gather input
+      float input = in[i];
+      // Detect clipping, and set target gain accordingly.
+      if (input * targetGain > 1.0) {
+        this.targetGain = 1.0f / input;
+        this.delaySinceClip = 0;
+        clips++;
+      }
+      // Modify real gain towards or away from target gain.
+      if (gain != targetGain) {
+        // Gain needs to be modified
+        if (gain > targetGain) {
+          // Use attack velocity
+          float velocity = (targetGain - 1) / attack; // Should be negative
+          if((gain+velocity) < targetGain){
+            gain = targetGain;
+          }else{
+            gain += velocity;
+          }
         }else{
-          gain += velocity;
+          // Use decay velocity
+          if(gain+decay > targetGain){
+            gain = targetGain;
+          }else{
+            gain += decay;
+          }
         }
-      }else{
-        // Use decay velocity
-        if(gain+decay > targetGain){
-          gain = targetGain;
-        }else{
-          gain += decay;
+      } else {
+        if(delaySinceClip == attack+sustain){
+          targetGain = 1;
         }
       }
-    } else {
-      if(delaySinceClip == attack+sustain){
-        targetGain = 1;
+
+      // Apply delay
+      float sample = this.buffer[bufferIndex];
+      this.buffer[bufferIndex] = input;
+
+      // Iterate buffer index
+      this.bufferIndex ++;
+      if (this.bufferIndex == buffer.length) {
+        this.bufferIndex = 0;
+      }
+      delaySinceClip++;
+
+      // Output delayed sample modified by undelayed gain.
+      out[i] = sample * gain;
+      if (gain < minGain) {
+        minGain = gain;
       }
     }
+    blockMinGain = minGain;
+    blockClips = clips;
+  }
 
-    // Apply delay
-    float sample = this.buffer[bufferIndex];
-    this.buffer[bufferIndex] = input;
+  // Look-ahead limiter. The gain each sample needs goes through a sliding minimum over the look-ahead
+  // and sustain, so every peak is held for at least the look-ahead, then through a moving average over
+  // the attack. The average reaches a held value by the time its peak leaves the delay line, so the
+  // output never exceeds the threshold; release only slows the recovery.
+  private void limit(float[] in, float[] out, int n) {
+    float minGain = blockMinGain;
+    int clips = 0;
+    for (int i = 0; i < n; i++) {
+      float input = in[i];
 
-    // Iterate buffer index
-    this.bufferIndex ++;
-    if (this.bufferIndex == buffer.length) {
-      this.bufferIndex = 0;
-    }
-    delaySinceClip++;
+      // Peak level, including the peaks between the previous two samples if oversampling
+      float peak = Math.abs(input);
+      for (int p = 0; p < phases.length; p++) {
+        float[] w = phases[p];
+        peak = Math.max(peak, Math.abs(w[0] * x3 + w[1] * x2 + w[2] * x1 + w[3] * input));
+      }
+      x3 = x2;
+      x2 = x1;
+      x1 = input;
+      float required = 1;
+      if (peak > threshold) {
+        required = threshold / peak;
+        clips++;
+      }
 
-    // Return delayed sample modified by undelayed gain.
-    return sample * gain;
-  }
+      // Sliding minimum. Entries that have left the window are dropped from the front before the
+      // push, so the ring never holds more than window entries, and entries that can never be the
+      // minimum again from the back.
+      if (minCount > 0 && time - minTimes[minHead] >= window) {
+        minHead = (minHead + 1) % window;
+        minCount--;
+      }
+      while (minCount > 0 && minGains[(minHead + minCount - 1) % window] >= required) {
+        minCount--;
+      }
+      int back = (minHead + minCount) % window;
+      minTimes[back] = time;
+      minGains[back] = required;
+      minCount++;
+      float hold = minGains[minHead];
+      time++;
 
-  // Compile all inputs into a single channel
-  private float processInput() {
-    if (x.length == 1) {
-      return x[0];
-    } else {
-      float sum = 0;
-      for (float f : x) {
-        sum += f;
+      // Attack: moving average of the held gain
+      heldSum += hold - held[heldIndex];
+      held[heldIndex] = hold;
+      heldIndex++;
+      if (heldIndex == held.length) {
+        heldIndex = 0;
+        // Resum once per lap, so rounding in the running sum can't build up
+        heldSum = 0;
+        for (int j = 0; j < held.length; j++) {
+          heldSum += held[j];
+        }
+      }
+      float target = (float)(heldSum / held.length);
+
+      // Release
+      if (target < limitGain) {
+        limitGain = target;
+      } else {
+        limitGain += (target - limitGain) * release;
+      }
+
+      // Apply delay
+      float sample = delayed[delayedIndex];
+      delayed[delayedIndex] = input;
+      delayedIndex++;
+      if (delayedIndex == delayed.length) {
+        delayedIndex = 0;
+      }
+      out[i] = sample * limitGain;
+      if (limitGain < minGain) {
+        minGain = limitGain;
       }
-      return sum;
     }
+    blockMinGain = minGain;
+    blockClips = clips;
+  }
+
+  // Catmull-Rom weights for the point a fraction t of the way from the second to the third of four samples.
+  private static float[] cubicWeights(float t) {
+    float t2 = t * t;
+    float t3 = t2 * t;
+    return new float[] {
+      0.5f * (-t3 + 2 * t2 - t),
+      0.5f * (3 * t3 - 5 * t2 + 2),
+      0.5f * (-3 * t3 + 4 * t2 + t),
+      0.5f * (t3 - t2)
+    };
   }
 }
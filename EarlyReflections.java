@@ -1,40 +1,85 @@
 import beads.*;
 import java.lang.Math.*;
-import java.util.ArrayList;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
-// Able to handle any room up to the size of a football field.
-class EarlyReflections extends Function {
+// Able to handle any room; the delay line grows with the largest room it has been set to.
+// By default only the six first-order wall echoes sound. setOrder() adds higher-order image sources,
+// and setWallMaterial() filters the echoes off each wall.
+class EarlyReflections extends UGen {
   private static final double SOUNDSPD = 1125.33;
-  private static final int BUFFERSIZE = 16384;
+  // Delay sets that can sound at once while room sizes crossfade
+  private static final int SLOTS = 4;
+  // Walls, in the order of the first-order delays
+  public static final int FLOOR = 0;
+  public static final int CEILING = 1;
+  public static final int FRONT = 2;
+  public static final int BACK = 3;
+  public static final int LEFT = 4;
+  public static final int RIGHT = 5;
+  private static final int WALLS = 6;
+  // Room for the taps of the highest order in each slot
+  private static final int MAXTAPS = ImageSources.MAXTAPS;
+  // Rooms up to this size fit the line at the order set with setOrder(), so the sketch's sliders never
+  // have to grow it
+  private static final float MAXFEET = 200;
   
   // Pseudo-constants
   private final double samplesPerFoot;
   
-  // Buffer variables
-  private float[] buffer;
-  private int bufferIndex;
+  // Input history, off heap
+  private DelayLine line;
   
-  // Delay arrays
-  private int[] delays;
-  private int[] delays2;
-  private float refDelay;
+  // Delay sets, one room size each, MAXTAPS apart: the tap delays sorted, their falloff, and the wall
+  // each one bounces off most; then the number of taps and the size
+  private final int[] slotDelays;
+  private final float[] slotFalloff;
+  private final int[] slotWalls;
+  private final int[] slotTaps;
+  private final float[][] slotSize;
+  private final int[] scratchDelays = new int[WALLS];
+  private final boolean[] slotUsed;
+  // Power of each other slot in use, as a share of what the target slot hasn't taken yet
+  private final double[] slotShare;
+  // Slot fading in, and its power so far
+  private int target;
   private float transition;
+  // Latest size asked for while every slot was sounding, started once a transition completes
+  private boolean pending;
+  private float pendingL, pendingW, pendingH;
+  // Slots sounding in the current control block, with their gains and slopes
+  private final int[] active;
+  private final double[] activeGain;
+  private final double[] activeSlope;
+  private float refDelay;
+
+  // Image sources up to this order; 1 keeps to the six wall echoes
+  private int order;
+  private final ImageSources images;
+  private final float[] imageSize = new float[3];
+  private final float[] imagePosition = new float[3];
+  // Material of each wall, or null for none
+  private final BiquadState[] walls;
+  private boolean materials;
+  // Block kernel: the taps off each filtered wall, then the rest, and scratch for the crossfade and slices
+  private float[][] buckets;
+  private float[] ramp;
+  private float[] slice;
   
   // Exporting for modular reverb
-  ArrayList<Integer> resonances;
+  int[] resonances;
   public float[] reverbWindow;
   
   // Room statistics
   private float l, w, h;
   private float goalL, goalW, goalH;
   private float echoFactor;
-  BiquadComponent attenuation;
+  BiquadState attenuation;
   
   // For transitioning between room sizes
   private float reverbVelocity;
   private float velocity;
-  private boolean aToB;
   
   // Stereo width stuff
   private float fbJitter;
@@ -42,14 +87,38 @@ class EarlyReflections extends Function {
   
   // Feedback
   private float prevOut;
+  
+  // Bumped on every parameter change
+  private int version;
+  // Samples between evaluations of the crossfade gains and room size
+  private int controlBlock;
+  private AudioMetrics metrics = AudioMetrics.NONE;
 
   
 
   public EarlyReflections(UGen input, int l, int w, int h, float stereoWidth, BiquadComponent attenuation) {
-    super(input);
-    this.buffer = new float[BUFFERSIZE];
-    this.delays = new int[6];
-    this.delays2 = new int[6];
+    this(input.getContext(), l, w, h, stereoWidth, attenuation);
+    addInput(input);
+  }
+
+  public EarlyReflections(AudioContext context, int l, int w, int h, float stereoWidth, BiquadComponent attenuation) {
+    super(context, 1, 1);
+    this.line = new DelayLine(roomDelay(1, SOUNDSPD / context.getSampleRate(), VelvetDelay.CONTROLBLOCK));
+    this.slotDelays = new int[SLOTS * MAXTAPS];
+    this.slotFalloff = new float[SLOTS * MAXTAPS];
+    this.slotWalls = new int[SLOTS * MAXTAPS];
+    this.slotTaps = new int[SLOTS];
+    this.slotSize = new float[SLOTS][3];
+    this.slotUsed = new boolean[SLOTS];
+    this.slotShare = new double[SLOTS];
+    this.active = new int[SLOTS];
+    this.activeGain = new double[SLOTS];
+    this.activeSlope = new double[SLOTS];
+    this.controlBlock = VelvetDelay.CONTROLBLOCK;
+    this.order = 1;
+    this.images = new ImageSources();
+    this.walls = new BiquadState[WALLS];
+    allocateKernel();
     
     // Quasi-constants
     this.reverbVelocity = 0.005f;
@@ -65,173 +134,512 @@ class EarlyReflections extends Function {
     this.goalH = h;
     
     this.echoFactor = 1.0f;
-    this.resonances = new ArrayList<Integer>();
+    this.resonances = new int[3];
     this.reverbWindow = new float[2];
-    this.attenuation = attenuation.register(this);
+    this.attenuation = attenuation.register();
     
     Random r = new Random();
 
     this.fbJitter = (float)((r.nextFloat() - 0.5) * stereoWidth * 2 + 0.5);
     this.lrJitter = (float)((r.nextFloat() - 0.5) * stereoWidth * 2 + 0.5);
     
-    
-    this.aToB = true;
-    initDelays();
-    this.aToB = false;
-    initDelays();
-  }
-
-  public float calculate() {
-    // Buffer inputt
-    float in = processInput();
-    buffer[bufferIndex] = in;
-    // Sample both echo tracks
-    float sample = 0;
-    float sample2 = 0;
-    // Determine if fading between delay sequences
-    if (transition < 1) {
-      for (int delay : delays) {
-        sample += get(-delay) / Math.pow((refDelay + delay) / refDelay, 2);
-      }
+    settle();
+  }
+
+  public void calculateBuffer() {
+    process(bufIn[0], bufOut[0], bufferSize);
+  }
+
+  // Processes a block of input. out must not alias in, as the dry signal is mixed in last.
+  public void process(float[] in, float[] out, int n) {
+    long start = metrics == AudioMetrics.NONE ? 0 : System.nanoTime();
+    long taps = 0;
+    for (int i = 0; i < n; i += controlBlock) {
+      taps += reflect(in, out, i, Math.min(controlBlock, n - i));
     }
-    if (transition > 0) {
-      for (int delay : delays2) {
-        sample2 += get(-delay) / Math.pow((refDelay + delay) / refDelay, 2);
-      }
+
+    attenuation.process(out, out, n);
+
+    for (int i = 0; i < n; i++) {
+      float sample = (out[i] + prevOut) / 2;
+      prevOut = sample;
+      out[i] = (sample * echoFactor) + in[i];
     }
-    if(transition < 1 && transition > 0){
-      // Transitioning. Change the mix.
-      if(aToB){
-        transition += velocity;
-        if(transition > 1){
-          transition = 1;
-        }
-      }else{
-        transition -= velocity;
-        if(transition < 0){
-          transition = 0;
-        }
-      }
+
+    if (metrics != AudioMetrics.NONE) {
+      metrics.taps(taps, n);
+      metrics.block(System.nanoTime() - start, n);
     }
-    // Equal power mix the delay sets
-    sample *= Math.pow(1-transition, 0.5);
-    sample2 *= Math.pow(transition, 0.5);
-    // Combine echoes into single track
-    sample = sample + sample2;
+  }
 
-    sample = attenuation.calculate(sample, this);
+  // Reports block timing and taps evaluated to metrics.
+  public void setMetrics(AudioMetrics metrics) {
+    this.metrics = metrics;
+  }
 
-    // Iterate buffer
-    bufferIndex++;
-    if (bufferIndex == buffer.length) {
-      bufferIndex = 0;
+  // Renders one control block of echoes. The crossfade gains are evaluated at its first and last
+  // samples and interpolated in between, and the room size steps once at the end.
+  // Returns the number of taps evaluated.
+  private int reflect(float[] in, float[] out, int off, int n) {
+    // Crossfade position at the first and last sample
+    float first = nextTransition(transition);
+    float last = first;
+    for (int i = 1; i < n; i++) {
+      last = nextTransition(last);
+    }
+    // Equal power mix of every delay set still sounding
+    int count = 0;
+    int taps = 0;
+    // Slots filled at a higher order, even one still fading out, need the block kernel
+    boolean images = materials;
+    for (int s = 0; s < SLOTS; s++) {
+      if (!slotUsed[s]) {
+        continue;
+      }
+      double gain = Math.sqrt(power(s, first));
+      double end = Math.sqrt(power(s, last));
+      if (gain == 0 && end == 0) {
+        continue;
+      }
+      active[count] = s;
+      activeGain[count] = gain;
+      activeSlope[count] = n > 1 ? (end - gain) / (n - 1) : 0;
+      taps += slotTaps[s];
+      images |= slotTaps[s] != WALLS;
+      count++;
+    }
+
+    if (images) {
+      mixImages(in, out, off, n, count);
+    } else {
+      mix(in, out, off, n, count);
+    }
+    transition = last;
+    if (transition == 1) {
+      finishTransition();
     }
 
     // Determine if changing reverb window
+    float step = reverbVelocity * n;
     boolean changed = false;
     if (goalL != l) {
-      l += MathUtils.constrain(goalL - l, -reverbVelocity, reverbVelocity);
+      l += MathUtils.constrain(goalL - l, -step, step);
       changed = true;
     }
     if (goalW != w) {
-      w += MathUtils.constrain(goalW - w, -reverbVelocity, reverbVelocity);
+      w += MathUtils.constrain(goalW - w, -step, step);
       changed = true;
     }
     if (goalH != h) {
-      h += MathUtils.constrain(goalH - h, -reverbVelocity, reverbVelocity);
+      h += MathUtils.constrain(goalH - h, -step, step);
       changed = true;
     }
     if (changed) {
       updateReverbWindow();
     }
-    sample = (sample + prevOut) / 2;
-    prevOut = sample;
-    return ((sample * echoFactor) + in);
+    return n * taps;
+  }
+
+  // Buffers n samples of input and writes the echoes of the active first-order sets, sample by sample.
+  private void mix(float[] in, float[] out, int off, int n, int count) {
+    DelayLine line = this.line;
+    FloatBuffer samples = line.samples;
+    int mask = line.mask;
+    int[] delays = slotDelays;
+    float[] falloff = slotFalloff;
+    for (int i = 0; i < n; i++) {
+      // Buffer input
+      int position = line.position;
+      line.write(in[off + i]);
+      // Sample every echo track, combining them into a single track
+      float mix = 0;
+      for (int a = 0; a < count; a++) {
+        int base = active[a] * MAXTAPS;
+        float sample = 0;
+        for (int k = base; k < base + WALLS; k++) {
+          sample += samples.get((position - delays[k]) & mask) * falloff[k];
+        }
+        mix += sample * (activeGain[a] + activeSlope[a] * i);
+      }
+      out[off + i] = mix;
+    }
+  }
+
+  // Block kernel for any number of taps. The input is buffered first, then each tap adds its slice of
+  // the line, scaled by its falloff and the crossfade, to the bucket of its wall. Filtered walls run
+  // through their material, and the buckets sum to the output. The line is kept a control block
+  // longer than the longest tap, so nothing a tap reads has been overwritten.
+  private void mixImages(float[] in, float[] out, int off, int n, int count) {
+    DelayLine line = this.line;
+    int start = line.position;
+    line.write(in, off, n);
+    FloatBuffer samples = line.samples;
+    int mask = line.mask;
+    for (float[] bucket : buckets) {
+      Arrays.fill(bucket, 0, n, 0);
+    }
+    for (int a = 0; a < count; a++) {
+      int slot = active[a];
+      for (int i = 0; i < n; i++) {
+        ramp[i] = (float)(activeGain[a] + activeSlope[a] * i);
+      }
+      int base = slot * MAXTAPS;
+      for (int t = base; t < base + slotTaps[slot]; t++) {
+        int wall = slotWalls[t];
+        float[] bucket = buckets[walls[wall] != null ? wall : WALLS];
+        int from = (start - slotDelays[t]) & mask;
+        // The slice may wrap around the end of the line
+        int run = Math.min(n, mask + 1 - from);
+        samples.get(from, slice, 0, run);
+        if (run < n) {
+          samples.get(0, slice, run, n - run);
+        }
+        float weight = slotFalloff[t];
+        for (int i = 0; i < n; i++) {
+          bucket[i] += slice[i] * weight * ramp[i];
+        }
+      }
+    }
+    float[] sum = buckets[WALLS];
+    for (int wall = 0; wall < WALLS; wall++) {
+      if (walls[wall] != null) {
+        float[] bucket = buckets[wall];
+        walls[wall].process(bucket, bucket, 0, n);
+        for (int i = 0; i < n; i++) {
+          sum[i] += bucket[i];
+        }
+      }
+    }
+    System.arraycopy(sum, 0, out, off, n);
+  }
+
+  // The crossfade position one sample on.
+  private float nextTransition(float transition) {
+    return transition < 1 ? Math.min(transition + velocity, 1) : transition;
+  }
+
+  // Power of a slot in use at crossfade position x. The target takes x, and the others share the rest
+  // in the proportions they had when it started, so the total stays 1.
+  private double power(int slot, float x) {
+    return slot == target ? x : (1 - x) * slotShare[slot];
+  }
+
+  // Starts fading in a new room size in a free slot. Everything sounding keeps its current power,
+  // which scales down as the new slot comes up.
+  private void startTransition(int slot, float l, float w, float h) {
+    for (int s = 0; s < SLOTS; s++) {
+      if (slotUsed[s]) {
+        slotShare[s] = power(s, transition);
+      }
+    }
+    fillSlot(slot, l, w, h);
+    slotUsed[slot] = true;
+    target = slot;
+    transition = 0;
+  }
+
+  // The target has faded in fully, so every other slot is silent and free again.
+  private void finishTransition() {
+    for (int s = 0; s < SLOTS; s++) {
+      if (s != target) {
+        slotUsed[s] = false;
+      }
+    }
+    if (pending) {
+      pending = false;
+      startTransition(freeSlot(), pendingL, pendingW, pendingH);
+    }
+  }
+
+  private int freeSlot() {
+    for (int s = 0; s < SLOTS; s++) {
+      if (!slotUsed[s]) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  // Drops every transition and plays the goal size alone.
+  private void settle() {
+    Arrays.fill(slotUsed, false);
+    pending = false;
+    fillSlot(0, goalL, goalW, goalH);
+    slotUsed[0] = true;
+    target = 0;
+    transition = 1;
+  }
+
+  // Sets how many samples share one evaluation of the crossfade gains and room size.
+  // 1 evaluates them every sample, as the reference.
+  public void setControlBlock(int samples) {
+    this.controlBlock = Math.max(samples, 1);
+    allocateKernel();
+    line.ensure(roomDelay(order, samplesPerFoot, controlBlock));
+    fitLine();
+  }
+
+  // Scratch for the block kernel, a control block long. Allocates, so call it before processing.
+  private void allocateKernel() {
+    if (ramp == null || ramp.length < controlBlock) {
+      buckets = new float[WALLS + 1][controlBlock];
+      ramp = new float[controlBlock];
+      slice = new float[controlBlock];
+    }
+  }
+
+  // Makes sure every slot in use fits the line, with a control block to spare for the block kernel.
+  private void fitLine() {
+    for (int s = 0; s < SLOTS; s++) {
+      if (slotUsed[s] && slotTaps[s] > 0) {
+        line.ensure(slotDelays[s * MAXTAPS + slotTaps[s] - 1] + controlBlock);
+      }
+    }
+  }
+
+  // Adds image sources up to the given order (1 to ImageSources.MAXORDER) to every delay set. Order 2
+  // has 24 taps and order 3 has 62. Grows the line to fit every room up to MAXFEET at this order, so
+  // set it before processing starts.
+  public void setOrder(int order) {
+    this.order = Math.min(Math.max(order, 1), ImageSources.MAXORDER);
+    line.ensure(roomDelay(this.order, samplesPerFoot, controlBlock));
+    refill();
+    version++;
+  }
+
+  // Longest delay, with a control block to spare, of any room up to MAXFEET at the given order.
+  private static int roomDelay(int order, double samplesPerFoot, int controlBlock) {
+    return (int)Math.ceil(ImageSources.longestPath(order, MAXFEET) / samplesPerFoot) + controlBlock;
+  }
+
+  // Crossfades to image sources up to the given order, as a size change would. Doesn't allocate for
+  // rooms up to MAXFEET and orders up to the highest given to setOrder(). Leaves the version alone, as
+  // ModularReverb.setTier does: the room itself doesn't change, so a frozen SwitchedReverb stays frozen.
+  public void fadeToOrder(int order) {
+    order = Math.min(Math.max(order, 1), ImageSources.MAXORDER);
+    if (order != this.order) {
+      this.order = order;
+      fadeTo(goalL, goalW, goalH);
+    }
+  }
+
+  public int getOrder() {
+    return order;
+  }
+
+  // Filters the echoes that bounce mostly off wall (FLOOR to RIGHT) through material, or stops filtering
+  // them if it is null. Each wall has one filter state, shared by all its taps. Call it before
+  // processing starts, as it allocates the filter state.
+  public void setWallMaterial(int wall, BiquadComponent material) {
+    walls[wall] = material == null ? null : material.register();
+    materials = false;
+    for (BiquadState state : walls) {
+      materials |= state != null;
+    }
+    version++;
   }
 
+  // The material of a wall, or null.
+  public BiquadComponent getWallMaterial(int wall) {
+    return walls[wall] == null ? null : walls[wall].getFilter();
+  }
+
+  // Crossfades to a new room size. Sizes that arrive while earlier ones are still fading in get a slot
+  // of their own; once every slot is sounding, the latest size waits for the current transition to end.
+  // Doesn't allocate for rooms up to MAXFEET at the order set with setOrder(); bigger ones grow the line.
   public void setSize(int l, int w, int h) {
-    this.goalL = Math.max(l, 1);
-    this.goalW = Math.max(w, 1);
-    this.goalH = Math.max(h, 1);
-    aToB = !aToB;
-    if(aToB){
-      transition += velocity;
-    }else{
-      transition -= velocity;
+    fadeTo(Math.max(l, 1), Math.max(w, 1), Math.max(h, 1));
+    version++;
+  }
+
+  private void fadeTo(float l, float w, float h) {
+    this.goalL = l;
+    this.goalW = w;
+    this.goalH = h;
+    int slot = freeSlot();
+    if (slot < 0) {
+      pending = true;
+      pendingL = goalL;
+      pendingW = goalW;
+      pendingH = goalH;
+    } else {
+      startTransition(slot, goalL, goalW, goalH);
     }
-    initDelays();
   }
   
   public void setFactor(float factor){
     this.echoFactor = factor;
+    version++;
+  }
+  
+  // Also changes when a wall material is redesigned.
+  public int getVersion(){
+    int materialVersions = 0;
+    for (BiquadState state : walls) {
+      if (state != null) {
+        materialVersions += state.getFilter().getVersion();
+      }
+    }
+    return version + materialVersions;
   }
 
-  public ArrayList<Integer> getDelays() {
-    return resonances;
+  // Reuses the wall positions of another room with the same stereo width, so both sound alike.
+  public void setJitter(float fbJitter, float lrJitter) {
+    this.fbJitter = fbJitter;
+    this.lrJitter = lrJitter;
+    refill();
+    version++;
   }
 
-  public float minDelay() {
-    return (float)(Math.min(Math.min(goalL, goalW), goalH) / SOUNDSPD);
+  // Recomputes every slot in use, after the jitter or order changes.
+  private void refill() {
+    for (int s = 0; s < SLOTS; s++) {
+      if (slotUsed[s] && s != target) {
+        fillSlot(s, slotSize[s][0], slotSize[s][1], slotSize[s][2]);
+      }
+    }
+    // Last, so the resonances follow the target
+    fillSlot(target, slotSize[target][0], slotSize[target][1], slotSize[target][2]);
   }
 
-  public float maxDelay() {
-    return (float)(Math.max(Math.max(goalL, goalW), goalH) / SOUNDSPD);
+  public float getFbJitter() {
+    return fbJitter;
   }
 
-  private float processInput() {
-    if (x.length == 1) {
-      return x[0];
-    } else {
-      float sum = 0;
-      for (float f : x) {
-        sum += f;
+  public float getLrJitter() {
+    return lrJitter;
+  }
+
+  public float getEchoFactor() {
+    return echoFactor;
+  }
+
+  // How far the latest room size has faded in, from 0 to 1.
+  public float getTransition() {
+    return transition;
+  }
+
+  // Room dimensions in feet, once any transition in progress has finished.
+  public float[] getSize() {
+    return new float[] {goalL, goalW, goalH};
+  }
+
+  // A detached copy of this room, sharing its filter design, with empty buffers.
+  public EarlyReflections copy() {
+    EarlyReflections copy = new EarlyReflections(context, 1, 1, 1, 0, attenuation.getFilter());
+    copy.copyRoom(this);
+    return copy;
+  }
+
+  // Takes over the settled room of source (the target of any transition in progress) and clears the buffers.
+  public void copyRoom(EarlyReflections source) {
+    this.l = this.goalL = source.goalL;
+    this.w = this.goalW = source.goalW;
+    this.h = this.goalH = source.goalH;
+    this.fbJitter = source.fbJitter;
+    this.lrJitter = source.lrJitter;
+    this.echoFactor = source.echoFactor;
+    this.order = source.order;
+    for (int wall = 0; wall < WALLS; wall++) {
+      BiquadComponent material = source.getWallMaterial(wall);
+      if (material != getWallMaterial(wall)) {
+        walls[wall] = material == null ? null : material.register();
       }
-      return sum;
     }
+    this.materials = source.materials;
+    settle();
+    updateReverbWindow();
+    reset();
   }
 
-  private void initDelays() {
-    int[] using = new int[6];
-    
-    while(resonances.size() < 3){
-      resonances.add(0);
+  // Clears the buffer and filter history, as if the room had only ever heard silence.
+  public void reset() {
+    line.clear();
+    prevOut = 0;
+    attenuation.reset();
+    for (BiquadState state : walls) {
+      if (state != null) {
+        state.reset();
+      }
     }
+  }
+
+  // Frees the delay line. The room can't be processed afterwards.
+  public void close() {
+    line.close();
+  }
+
+  public int[] getDelays() {
+    return resonances;
+  }
+
+  public float minDelay() {
+    return (float)(Math.min(Math.min(goalL, goalW), goalH) / SOUNDSPD);
+  }
+
+  public float maxDelay() {
+    return (float)(Math.max(Math.max(goalL, goalW), goalH) / SOUNDSPD);
+  }
+
+  // Computes the wall delays of a room size into a slot, in place. The resonances follow it.
+  private void fillSlot(int slot, float l, float w, float h) {
+    int[] using = scratchDelays;
+    slotSize[slot][0] = l;
+    slotSize[slot][1] = w;
+    slotSize[slot][2] = h;
 
     // Floor / ceiling delay
-    float pos = Math.min(goalH-1, 6);
+    float pos = Math.min(h-1, 6);
     using[0] = (int)(Math.round(pos / samplesPerFoot) * 2);
-    using[1] = (int)(Math.round((goalH - pos) / samplesPerFoot) * 2);
-    this.resonances.set(0, (int)Math.round(goalH / samplesPerFoot));
+    using[1] = (int)(Math.round((h - pos) / samplesPerFoot) * 2);
+    this.resonances[0] = (int)Math.round(h / samplesPerFoot);
 
     // Front / Back wall delays
-    pos = goalL * fbJitter;
+    pos = l * fbJitter;
     using[2] = (int)Math.round(pos / samplesPerFoot) * 2;
-    using[3] = (int)Math.round((goalL - pos) / samplesPerFoot) * 2;
-    this.resonances.set(1, (int)Math.round(goalL / samplesPerFoot));
+    using[3] = (int)Math.round((l - pos) / samplesPerFoot) * 2;
+    this.resonances[1] = (int)Math.round(l / samplesPerFoot);
 
     // Left / right wall delays
-    pos = goalW * lrJitter;
+    pos = w * lrJitter;
     using[4] =(int)Math.round(pos / samplesPerFoot) * 2;
-    using[5] = (int)Math.round((goalW - pos) / samplesPerFoot) * 2;
-    this.resonances.set(2, (int)Math.round(goalW / samplesPerFoot));
+    using[5] = (int)Math.round((w - pos) / samplesPerFoot) * 2;
+    this.resonances[2] = (int)Math.round(w / samplesPerFoot);
     
-    if (aToB) {
-      this.delays2 = using;
+    int base = slot * MAXTAPS;
+    int longest;
+    if (order == 1) {
+      for (int i = 0; i < WALLS; i++) {
+        slotDelays[base + i] = using[i];
+        slotFalloff[base + i] = (float)(1 / Math.pow((refDelay + using[i]) / refDelay, 2));
+        slotWalls[base + i] = i;
+      }
+      slotTaps[slot] = WALLS;
+      longest = longest(using);
     } else {
-      this.delays = using;
+      // Same listening point as the first-order delays, with the axes in wall order
+      imageSize[0] = h;
+      imageSize[1] = l;
+      imageSize[2] = w;
+      imagePosition[0] = Math.min(h-1, 6);
+      imagePosition[1] = l * fbJitter;
+      imagePosition[2] = w * lrJitter;
+      slotTaps[slot] = images.generate(order, imageSize, imagePosition, samplesPerFoot, refDelay, slotDelays, slotFalloff, slotWalls, base);
+      longest = slotDelays[base + slotTaps[slot] - 1];
     }
+    
+    // Bigger rooms than any before need a longer line. The other slots keep fitting, as it never shrinks.
+    line.ensure(longest + controlBlock);
 
     updateReverbWindow();
   }
 
-  // Gets a value from the circular buffer a given offset from the current index.
-  // Only supports negative offsets, as this system does not support forward-looking filters.
-  private float get(int offset) {
-    int index = bufferIndex + offset;
-    if (index < 0) {
-      index += buffer.length;
+  private static int longest(int[] delays) {
+    int longest = 0;
+    for (int delay : delays) {
+      longest = Math.max(longest, delay);
     }
-    return buffer[index];
+    return longest;
   }
 
   // Update the minimum and maximum delays for the corresponding reverb
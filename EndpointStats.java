@@ -0,0 +1,95 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request counts, latency and throughput of one endpoint of a RenderService. Any number of request
+// threads record into it at once without locking. Latencies go into power-of-two buckets of
+// microseconds, so percentiles are upper bounds within a factor of two.
+class EndpointStats {
+  private static final int BUCKETS = 40;
+
+  public final String path;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder frames = new LongAdder();
+  // Microseconds of audio rendered
+  private final LongAdder audioMicros = new LongAdder();
+
+  public EndpointStats(String path) {
+    this.path = path;
+  }
+
+  // Records one finished request. status is the HTTP status sent, 503 counting as a rejection and
+  // other 5xx (or none sent at all) as a failure.
+  public void record(int status, long nanos, long bytesIn, long bytesOut, long frames, float sampleRate) {
+    requests.increment();
+    if (status == 503) {
+      rejected.increment();
+    } else if (status < 0 || status >= 500) {
+      failed.increment();
+    }
+    this.nanos.add(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+    latencies.incrementAndGet(bucket(nanos));
+    this.bytesIn.add(bytesIn);
+    this.bytesOut.add(bytesOut);
+    if (frames > 0) {
+      this.frames.add(frames);
+      audioMicros.add((long)(frames / (double)sampleRate * 1e6));
+    }
+  }
+
+  private static int bucket(long nanos) {
+    long micros = Math.max(nanos / 1000, 1);
+    return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  // Upper bound of the latency under which the given fraction of requests finished, in milliseconds.
+  public double percentile(double fraction) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += latencies.get(i);
+    }
+    long rank = (long)Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += latencies.get(i);
+      if (seen >= rank && seen > 0) {
+        return Math.min(2L << i, maxNanos.get() / 1000) / 1000.0;
+      }
+    }
+    return 0;
+  }
+
+  public String toString() {
+    long count = requests.sum();
+    double seconds = nanos.sum() / 1e9;
+    double audioSeconds = audioMicros.sum() / 1e6;
+    return String.format(Locale.US,
+      "%s: %d requests (%d rejected, %d failed), latency mean %.1f ms p50 %.1f ms p99 %.1f ms max %.1f ms, "
+        + "%.2f MB in, %.2f MB out, %.2f s of audio, %.1fx real time, %.0f samples/s",
+      path, count, rejected.sum(), failed.sum(), count == 0 ? 0 : seconds * 1000 / count,
+      percentile(0.5), percentile(0.99), maxNanos.get() / 1e6,
+      bytesIn.sum() / 1e6, bytesOut.sum() / 1e6, audioSeconds,
+      seconds == 0 ? 0 : audioSeconds / seconds, seconds == 0 ? 0 : frames.sum() / seconds);
+  }
+}
@@ -0,0 +1,51 @@
+import beads.*;
+import java.lang.management.ManagementFactory;
+
+// Times every frame of an AudioContext from the audio thread: processing time, frames that took longer
+// than their own duration (underruns), and bytes the audio thread allocated. Add it with attach().
+class EngineMonitor extends Bead {
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private final AudioMetrics metrics;
+  private final int blockSize;
+  private final long deadline;
+  private final boolean countAllocations;
+  private long start;
+  private long allocated;
+
+  public EngineMonitor(AudioContext context, AudioMetrics metrics) {
+    this.metrics = metrics;
+    this.blockSize = context.getBufferSize();
+    this.deadline = (long)(blockSize / context.getSampleRate() * 1e9);
+    this.countAllocations = THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+  }
+
+  // Starts timing the frames of context.
+  public void attach(AudioContext context) {
+    context.invokeBeforeEveryFrame(this);
+    context.invokeAfterEveryFrame(new Bead() {
+      protected void messageReceived(Bead message) {
+        end();
+      }
+    });
+  }
+
+  protected void messageReceived(Bead message) {
+    if (countAllocations) {
+      allocated = THREADS.getCurrentThreadAllocatedBytes();
+    }
+    start = System.nanoTime();
+  }
+
+  private void end() {
+    long nanos = System.nanoTime() - start;
+    metrics.block(nanos, blockSize);
+    if (nanos > deadline) {
+      metrics.underrun();
+    }
+    if (countAllocations) {
+      metrics.allocated(THREADS.getCurrentThreadAllocatedBytes() - allocated);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// In-place radix-2 complex FFT of a fixed size, with precomputed twiddles and bit reversal.
+// Neither direction is normalised; scale by 1/size after the inverse.
+// Instances are read-only after construction, so one can be shared by several threads.
+class Fft {
+  private final int size;
+  private final int[] reversed;
+  private final float[] cos;
+  private final float[] sin;
+
+  public Fft(int size) {
+    if (size < 2 || (size & (size - 1)) != 0) {
+      throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+    }
+    this.size = size;
+    this.reversed = new int[size];
+    int bits = Integer.numberOfTrailingZeros(size);
+    for (int i = 0; i < size; i++) {
+      reversed[i] = Integer.reverse(i) >>> (32 - bits);
+    }
+    this.cos = new float[size / 2];
+    this.sin = new float[size / 2];
+    for (int i = 0; i < size / 2; i++) {
+      cos[i] = (float)Math.cos(2 * Math.PI * i / size);
+      sin[i] = (float)Math.sin(2 * Math.PI * i / size);
+    }
+  }
+
+  public void forward(float[] re, float[] im) {
+    transform(re, im, -1);
+  }
+
+  public void inverse(float[] re, float[] im) {
+    transform(re, im, 1);
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  private void transform(float[] re, float[] im, int sign) {
+    // Bit reversal permutation
+    for (int i = 0; i < size; i++) {
+      int j = reversed[i];
+      if (j > i) {
+        float t = re[i];
+        re[i] = re[j];
+        re[j] = t;
+        t = im[i];
+        im[i] = im[j];
+        im[j] = t;
+      }
+    }
+    // Butterflies
+    for (int length = 2; length <= size; length <<= 1) {
+      int half = length >> 1;
+      int step = size / length;
+      for (int start = 0; start < size; start += length) {
+        for (int k = 0; k < half; k++) {
+          float wr = cos[k * step];
+          float wi = sign * sin[k * step];
+          int a = start + k;
+          int b = a + half;
+          float tr = re[b] * wr - im[b] * wi;
+          float ti = re[b] * wi + im[b] * wr;
+          re[b] = re[a] - tr;
+          im[b] = im[a] - ti;
+          re[a] += tr;
+          im[a] += ti;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+// Image sources of a shoebox room, for EarlyReflections. Source and listener share one point, as in
+// the first-order model, so along each axis an image lies 2mL away (an even number of bounces, split
+// between both walls) or 2mL - 2x away (an odd number, the extra bounce on the near wall for m <= 0
+// and the far wall otherwise). Every combination of axis images up to the order becomes a tap.
+class ImageSources {
+  // Highest order supported, and the taps it needs: 4n^2 + 2 images of each order n
+  public static final int MAXORDER = 6;
+  public static final int MAXTAPS = taps(MAXORDER);
+  // Broadband loss per bounce after the first, on top of any wall material
+  static final float REFLECTANCE = 0.7f;
+
+  // Axis images of all three axes: distance in feet, bounces, and the wall taking most of them (-1 for
+  // an even split)
+  private final double[] axisDistance = new double[3 * 2 * (2 * MAXORDER + 1)];
+  private final int[] axisBounces = new int[axisDistance.length];
+  private final int[] axisWall = new int[axisDistance.length];
+
+  // Taps of every image up to order, in a room of the given order.
+  public static int taps(int order) {
+    int taps = 0;
+    for (int n = 1; n <= order; n++) {
+      taps += 4 * n * n + 2;
+    }
+    return taps;
+  }
+
+  // Upper bound in feet on the path of any image up to order, in a room no side of which is longer than
+  // size, wherever the listener stands. An axis image with b bounces lies at most (b + 1) sides away, so
+  // the longest paths put every bounce on one axis.
+  public static double longestPath(int order, double size) {
+    return (order + 1) * size;
+  }
+
+  // Writes the taps of every image of order 1 to order into delays, weights and walls from off, sorted
+  // by delay, and returns how many there are. size and position are {height, length, width} in feet,
+  // matching the wall pairs of EarlyReflections. Doesn't allocate.
+  public int generate(int order, float[] size, float[] position, double samplesPerFoot, float refDelay,
+                      int[] delays, float[] weights, int[] walls, int off) {
+    int count = 0;
+    // Axes in wall order: floor / ceiling, front / back, left / right
+    int zFirst = 0;
+    int zCount = axis(0, order, size[0], position[0], 0);
+    int xFirst = zCount;
+    int xCount = axis(xFirst, order, size[1], position[1], 2);
+    int yFirst = xFirst + xCount;
+    int yCount = axis(yFirst, order, size[2], position[2], 4);
+    for (int a = zFirst; a < zFirst + zCount; a++) {
+      for (int b = xFirst; b < xFirst + xCount; b++) {
+        int bounces = axisBounces[a] + axisBounces[b];
+        if (bounces > order) {
+          continue;
+        }
+        for (int c = yFirst; c < yFirst + yCount; c++) {
+          int total = bounces + axisBounces[c];
+          if (total == 0 || total > order) {
+            continue;
+          }
+          double distance = Math.sqrt(axisDistance[a] * axisDistance[a] + axisDistance[b] * axisDistance[b]
+            + axisDistance[c] * axisDistance[c]);
+          int delay = (int)Math.round(distance / samplesPerFoot);
+          double falloff = Math.pow((refDelay + delay) / refDelay, 2);
+          float weight = (float)(Math.pow(REFLECTANCE, total - 1) / falloff);
+          insert(delays, weights, walls, off, count, delay, weight, dominantWall(a, b, c));
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  // Lists the images along one axis with up to order bounces, from index first. Returns how many.
+  private int axis(int first, int order, float size, float position, int nearWall) {
+    int count = 0;
+    for (int m = -order; m <= order; m++) {
+      for (int q = 0; q <= 1; q++) {
+        int bounces = Math.abs(m - q) + Math.abs(m);
+        if (bounces > order) {
+          continue;
+        }
+        axisDistance[first + count] = 2.0 * m * size - 2.0 * q * position;
+        axisBounces[first + count] = bounces;
+        axisWall[first + count] = q == 0 || bounces == 0 ? -1 : (m <= 0 ? nearWall : nearWall + 1);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // The wall the image bounces off most: the axis with the most bounces, and on it the wall with the
+  // extra bounce, or the near wall when they are even. Ties go to the first axis.
+  private int dominantWall(int a, int b, int c) {
+    int best = a;
+    if (axisBounces[b] > axisBounces[best]) {
+      best = b;
+    }
+    if (axisBounces[c] > axisBounces[best]) {
+      best = c;
+    }
+    if (axisWall[best] >= 0) {
+      return axisWall[best];
+    }
+    return best == a ? 0 : (best == b ? 2 : 4);
+  }
+
+  // Inserts a tap into the first count taps from off, keeping them sorted by delay.
+  private static void insert(int[] delays, float[] weights, int[] walls, int off, int count, int delay, float weight, int wall) {
+    int i = off + count;
+    while (i > off && delays[i - 1] > delay) {
+      delays[i] = delays[i - 1];
+      weights[i] = weights[i - 1];
+      walls[i] = walls[i - 1];
+      i--;
+    }
+    delays[i] = delay;
+    weights[i] = weight;
+    walls[i] = wall;
+  }
+}
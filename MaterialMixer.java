@@ -1,49 +1,168 @@
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 
 // Weighted mixer for multiple BiquadComponents.
 // Weights are normalized internally, so feel free to put crazy weights on.
+// The named materials are compiled into a flat, index-addressed filter bank with normalized weights
+// whenever they change, so mixing is a loop over arrays. Every filter sees the same input, so the bank
+// keeps one input history, and runs the filters side by side rather than one after another.
+// Changes may come from another thread than the audio: each compiled bank is published whole.
 class MaterialMixer {
-  private HashMap<String, BiquadComponent> components;
-  private HashMap<String, Float> weights;
+  private LinkedHashMap<String, BiquadComponent> components;
+  private LinkedHashMap<String, Float> weights;
   private float totalWeight;
+  // Compiled bank, replaced on every change
+  private volatile Bank bank;
+  
+  public MaterialMixer(){
+    this.components = new LinkedHashMap<String, BiquadComponent>();
+    this.weights = new LinkedHashMap<String, Float>();
+    this.bank = new Bank(new String[0], new BiquadComponent[0], new float[0]);
+  }
   
   public float calculate(float in){
+    Bank bank = this.bank;
+    BiquadComponent[] filters = bank.filters;
+    float[] gains = bank.gains;
+    double[] y1 = bank.y1, y2 = bank.y2;
+    double x1 = bank.x1, x2 = bank.x2;
     float sample = 0;
-    for(String name: components.keySet()){
-      // Pass the input through the biquad, then multiply it by its weight, then divide it by the total weights.
-      sample += components.get(name).calculate(in, this) * weights.get(name) / totalWeight;
+    for(int l = 0; l < filters.length; l++){
+      // Pass the input through the biquad, then scale it by its normalized weight.
+      BiquadComponent f = filters[l];
+      double y = (f.b0 * in) + (f.b1 * x1) + (f.b2 * x2) - (f.a1 * y1[l]) - (f.a2 * y2[l]);
+      y2[l] = y1[l];
+      y1[l] = y;
+      sample += (float)y * gains[l];
     }
+    bank.x2 = x1;
+    bank.x1 = in;
     return sample;
   }
   
-  public void put(String name, BiquadComponent filter, float weight){
+  // Block counterpart of calculate(). in and out may be the same array.
+  public void process(float[] in, float[] out, int n){
+    Bank bank = this.bank;
+    bank.loadCoefficients();
+    int lanes = bank.filters.length;
+    double[] b0 = bank.b0, b1 = bank.b1, b2 = bank.b2, a1 = bank.a1, a2 = bank.a2;
+    double[] y1 = bank.y1, y2 = bank.y2;
+    float[] gains = bank.gains;
+    double x1 = bank.x1, x2 = bank.x2;
+    for(int i = 0; i < n; i++){
+      double x = in[i];
+      float sample = 0;
+      for(int l = 0; l < lanes; l++){
+        double y = (b0[l] * x) + (b1[l] * x1) + (b2[l] * x2) - (a1[l] * y1[l]) - (a2[l] * y2[l]);
+        y2[l] = y1[l];
+        y1[l] = y;
+        sample += (float)y * gains[l];
+      }
+      x2 = x1;
+      x1 = x;
+      out[i] = sample;
+    }
+    bank.x1 = x1;
+    bank.x2 = x2;
+  }
+  
+  public synchronized void put(String name, BiquadComponent filter, float weight){
     components.put(name, filter);
     weights.put(name, weight);
-    updateTotal();
+    compile();
   }
   
-  public void remove(String name){
+  public synchronized void remove(String name){
     components.remove(name);
     weights.remove(name);
-    updateTotal();
+    compile();
   }
   
-  public void setWeight(String name, float weight){
+  public synchronized void setWeight(String name, float weight){
     if(weights.containsKey(name)){
       weights.put(name, weight);
     }
-    updateTotal();
+    compile();
+  }
+  
+  public int size(){
+    return bank.filters.length;
   }
   
   // Private methods
   
-  // Update the total weight of the mixer.
-  private void updateTotal(){
+  // Update the total weight of the mixer, and rebuild the bank with weights normalized by it.
+  // Materials that were already in the bank keep their filter history.
+  private void compile(){
     float sum = 0;
     for(float weight : weights.values()){
       sum += weight;
     }
     totalWeight = sum;
+    
+    String[] names = new String[components.size()];
+    BiquadComponent[] filters = new BiquadComponent[names.length];
+    float[] gains = new float[names.length];
+    int l = 0;
+    for(String name : components.keySet()){
+      names[l] = name;
+      filters[l] = components.get(name);
+      gains[l] = weights.get(name) / totalWeight;
+      l++;
+    }
+    Bank compiled = new Bank(names, filters, gains);
+    compiled.carryHistory(bank);
+    bank = compiled;
+  }
+  
+  // Filters, their normalized weights and their history, by index
+  private static class Bank {
+    final String[] names;
+    final BiquadComponent[] filters;
+    final float[] gains;
+    // Coefficients, copied from the filters once per block so design changes still apply
+    final double[] b0, b1, b2, a1, a2;
+    final double[] y1, y2;
+    double x1, x2;
+    
+    Bank(String[] names, BiquadComponent[] filters, float[] gains){
+      this.names = names;
+      this.filters = filters;
+      this.gains = gains;
+      int lanes = filters.length;
+      this.b0 = new double[lanes];
+      this.b1 = new double[lanes];
+      this.b2 = new double[lanes];
+      this.a1 = new double[lanes];
+      this.a2 = new double[lanes];
+      this.y1 = new double[lanes];
+      this.y2 = new double[lanes];
+    }
+    
+    void loadCoefficients(){
+      for(int l = 0; l < filters.length; l++){
+        BiquadComponent f = filters[l];
+        b0[l] = f.b0;
+        b1[l] = f.b1;
+        b2[l] = f.b2;
+        a1[l] = f.a1;
+        a2[l] = f.a2;
+      }
+    }
+    
+    // Takes over the history of the same materials in the previous bank. The audio thread may still
+    // be running the previous bank, in which case a sample of history is lost; that is inaudible.
+    void carryHistory(Bank previous){
+      x1 = previous.x1;
+      x2 = previous.x2;
+      for(int l = 0; l < names.length; l++){
+        for(int p = 0; p < previous.names.length; p++){
+          if(previous.names[p].equals(names[l]) && previous.filters[p] == filters[l]){
+            y1[l] = previous.y1[p];
+            y2[l] = previous.y2[p];
+          }
+        }
+      }
+    }
   }
 }
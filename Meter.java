@@ -0,0 +1,143 @@
+// Collects meter readings on the audio thread and publishes them to a MeterRing, one frame every
+// decimation samples. A frame holds the peak and RMS of each stage, the Ducker gain, the
+// EarlyReflections crossfade position and a log-spaced spectrum of the reverb tail, at the offsets
+// below. Nothing is allocated after construction.
+class Meter {
+  public static final int INPUT = 0;
+  public static final int REFLECTIONS = 1;
+  public static final int REVERB = 2;
+  public static final int OUTPUT = 3;
+  public static final int STAGES = 4;
+
+  // Frame layout
+  public static final int GAIN = STAGES * 2;
+  public static final int TRANSITION = GAIN + 1;
+  public static final int SPECTRUM = TRANSITION + 1;
+  public static final int BANDS = 48;
+  public static final int FRAMESIZE = SPECTRUM + BANDS;
+
+  private static final int FFTSIZE = 1024;
+  private static final float LOWEST = 40;
+
+  private final MeterRing ring;
+  private final int decimation;
+  private final float[] frame;
+  private int samples;
+
+  // Running peak and sum of squares of each stage over the frame
+  private final float[] peaks;
+  private final double[] squares;
+  private final int[] counts;
+  private float gain;
+  private float transition;
+
+  // Last FFTSIZE samples of the reverb, and the analysis scratch
+  private final Fft fft;
+  private final float[] history;
+  private int historyIndex;
+  private final float[] hann;
+  private final float[] re, im;
+  private final int[] bandEdges;
+
+  public Meter(float sampleRate, int decimation, int frames) {
+    this.ring = new MeterRing(frames, FRAMESIZE);
+    this.decimation = decimation;
+    this.frame = new float[FRAMESIZE];
+    this.peaks = new float[STAGES];
+    this.squares = new double[STAGES];
+    this.counts = new int[STAGES];
+    this.gain = 1;
+    this.fft = new Fft(FFTSIZE);
+    this.history = new float[FFTSIZE];
+    this.hann = new float[FFTSIZE];
+    for (int i = 0; i < FFTSIZE; i++) {
+      hann[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / FFTSIZE));
+    }
+    this.re = new float[FFTSIZE];
+    this.im = new float[FFTSIZE];
+    // Log-spaced bands from LOWEST up to Nyquist, each at least one bin wide
+    this.bandEdges = new int[BANDS + 1];
+    float nyquist = sampleRate / 2;
+    for (int b = 0; b <= BANDS; b++) {
+      double frequency = LOWEST * Math.pow(nyquist / LOWEST, b / (double)BANDS);
+      bandEdges[b] = (int)Math.round(frequency / nyquist * (FFTSIZE / 2));
+      if (b > 0) {
+        bandEdges[b] = Math.max(bandEdges[b], bandEdges[b - 1] + 1);
+      }
+    }
+    bandEdges[BANDS] = Math.min(bandEdges[BANDS], FFTSIZE / 2);
+  }
+
+  public MeterRing getRing() {
+    return ring;
+  }
+
+  // Adds n samples of a stage, starting at off, to the current frame.
+  public void stage(int stage, float[] buf, int off, int n) {
+    float peak = peaks[stage];
+    double sum = 0;
+    for (int i = off; i < off + n; i++) {
+      float sample = buf[i];
+      sum += sample * sample;
+      peak = Math.max(peak, Math.abs(sample));
+    }
+    peaks[stage] = peak;
+    squares[stage] += sum;
+    counts[stage] += n;
+  }
+
+  // Keeps the last samples of the reverb tail for the spectrum.
+  public void tail(float[] buf, int off, int n) {
+    for (int i = off; i < off + n; i++) {
+      history[historyIndex] = buf[i];
+      historyIndex = (historyIndex + 1) & (FFTSIZE - 1);
+    }
+  }
+
+  // Keeps the lowest gain reported over the frame.
+  public void gain(float gain) {
+    this.gain = Math.min(this.gain, gain);
+  }
+
+  public void transition(float transition) {
+    this.transition = transition;
+  }
+
+  // Marks n samples as done, publishing a frame every decimation samples.
+  public void advance(int n) {
+    samples += n;
+    if (samples < decimation) {
+      return;
+    }
+    samples = 0;
+    for (int s = 0; s < STAGES; s++) {
+      frame[s * 2] = peaks[s];
+      frame[s * 2 + 1] = counts[s] == 0 ? 0 : (float)Math.sqrt(squares[s] / counts[s]);
+      peaks[s] = 0;
+      squares[s] = 0;
+      counts[s] = 0;
+    }
+    frame[GAIN] = gain;
+    gain = 1;
+    frame[TRANSITION] = transition;
+    spectrum();
+    ring.write(frame);
+  }
+
+  // Band levels in dB of the windowed reverb history.
+  private void spectrum() {
+    for (int i = 0; i < FFTSIZE; i++) {
+      re[i] = history[(historyIndex + i) & (FFTSIZE - 1)] * hann[i];
+      im[i] = 0;
+    }
+    fft.forward(re, im);
+    for (int b = 0; b < BANDS; b++) {
+      float power = 0;
+      for (int k = bandEdges[b]; k < bandEdges[b + 1]; k++) {
+        power += re[k] * re[k] + im[k] * im[k];
+      }
+      power /= Math.max(bandEdges[b + 1] - bandEdges[b], 1);
+      frame[SPECTRUM + b] = (float)(10 * Math.log10(power + 1e-12));
+    }
+  }
+}
@@ -0,0 +1,67 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Single-producer ring of fixed-size float frames for meters. The audio thread writes without ever
+// waiting; when the ring is full the oldest frame is overwritten. Readers on any thread copy frames
+// out at their own pace and never block the writer: each slot carries a sequence word that is odd
+// while the slot is being written, so a reader that raced the writer sees a changed sequence and
+// drops the frame instead of returning a torn one.
+class MeterRing {
+  private final int capacity;
+  private final int frameSize;
+  private final float[] data;
+  // Per slot: 2 * frame + 1 while frame is being written, 2 * frame + 2 once it is complete
+  private final AtomicLongArray sequences;
+  // Frames published so far
+  private volatile long written;
+
+  public MeterRing(int capacity, int frameSize) {
+    this.capacity = capacity;
+    this.frameSize = frameSize;
+    this.data = new float[capacity * frameSize];
+    this.sequences = new AtomicLongArray(capacity);
+  }
+
+  // Publishes a frame, overwriting the oldest if the ring is full. Audio thread only.
+  public void write(float[] frame) {
+    long number = written;
+    int slot = (int)(number % capacity);
+    sequences.set(slot, number * 2 + 1);
+    // The odd sequence must be visible before any of the new data
+    VarHandle.storeStoreFence();
+    System.arraycopy(frame, 0, data, slot * frameSize, frameSize);
+    sequences.setRelease(slot, number * 2 + 2);
+    written = number + 1;
+  }
+
+  // Copies frame number into dest. Returns false if it has not been written yet, or has already been
+  // overwritten (including while it was being copied). Never blocks.
+  public boolean read(long number, float[] dest) {
+    if (number < 0 || number >= written) {
+      return false;
+    }
+    int slot = (int)(number % capacity);
+    long expected = number * 2 + 2;
+    if (sequences.getAcquire(slot) != expected) {
+      return false;
+    }
+    System.arraycopy(data, slot * frameSize, dest, 0, frameSize);
+    // The copy must complete before the sequence is checked again
+    VarHandle.loadLoadFence();
+    return sequences.get(slot) == expected;
+  }
+
+  // Number of frames published so far. The next frame to be written has this number.
+  public long getWritten() {
+    return written;
+  }
+
+  // The oldest frame that may still be in the ring.
+  public long getOldest() {
+    return Math.max(0, written - capacity);
+  }
+
+  public int getFrameSize() {
+    return frameSize;
+  }
+}
@@ -1,77 +1,333 @@
 import beads.*;
 import java.lang.Math.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 
-class ModularReverb extends Function {
+class ModularReverb extends UGen {
+  public static final int ROTATIONS = 23;
+  // Seconds a change of quality tier crossfades over
+  private static final float TIERFADE = 0.1f;
   VelvetDelay delay;
-  BiquadComponent materialAttenuation;
-  BiquadComponent airAttenuation;
+  BiquadState materialAttenuation;
+  BiquadState airAttenuation;
   float prevOut;
   float reverberance;
   float goalReverberance;
   float velocity;
+  // Delay line input (dry input plus feedback) for the chunk being processed
+  private float[] feedback;
+  // Bumped on every parameter change
+  private int version;
+  private AudioMetrics metrics = AudioMetrics.NONE;
+  // Seed of the velvet sequences the quality tiers are built from
+  private int seed = VelvetDelay.SEED;
 
+  // Quality tiers, one velvet delay each on the same window and resonances, and the one playing.
+  // After a switch the previous delay keeps running until it has crossfaded out.
+  private VelvetDelay[] tiers;
+  private int tier;
+  private VelvetDelay fading;
+  private float[] faded;
+  private int fadeLength;
+  private int fadeLeft;
 
   public ModularReverb(UGen input, float[] window, int density, float reverberance, BiquadComponent materialAttenuation) {
-    super(input);
+    this(input.getContext(), window, density, reverberance, materialAttenuation);
+    addInput(input);
+  }
+
+  public ModularReverb(AudioContext context, float[] window, int density, float reverberance, BiquadComponent materialAttenuation) {
+    this(context, window, density, ROTATIONS, reverberance, materialAttenuation);
+  }
+
+  public ModularReverb(AudioContext context, float[] window, int density, int rotations, float reverberance, BiquadComponent materialAttenuation) {
+    this(context, window, density, rotations, VelvetDelay.SEED, reverberance, materialAttenuation);
+  }
+
+  // Reverbs with different seeds run on different velvet sequences, and so decorrelate.
+  public ModularReverb(AudioContext context, float[] window, int density, int rotations, int seed, float reverberance, BiquadComponent materialAttenuation) {
+    super(context, 1, 1);
     float sampleRate = context.getSampleRate();
-    delay = new VelvetDelay((int)context.getSampleRate(), 23, window, Math.round(sampleRate / density), context.getSampleRate());
+    delay = new VelvetDelay((int)context.getSampleRate(), rotations, window, Math.round(sampleRate / density), context.getSampleRate(), seed);
     this.reverberance = reverberance;
     this.goalReverberance = reverberance;
     this.velocity = 1.0f;
-    this.materialAttenuation = materialAttenuation.register(this);
+    this.materialAttenuation = materialAttenuation.register();
+    this.feedback = new float[bufferSize];
+    this.seed = seed;
   }
 
   public ModularReverb(UGen input, VelvetDelay delay, BiquadComponent attenuation) {
-    super(input);
+    this(input.getContext(), delay, attenuation);
+    addInput(input);
+  }
+
+  public ModularReverb(AudioContext context, VelvetDelay delay, BiquadComponent attenuation) {
+    this(context, delay, 0, attenuation);
+  }
+
+  public ModularReverb(AudioContext context, VelvetDelay delay, float reverberance, BiquadComponent attenuation) {
+    super(context, 1, 1);
     this.delay = delay;
-    this.materialAttenuation = attenuation;
+    this.reverberance = reverberance;
+    this.goalReverberance = reverberance;
+    this.velocity = 1.0f;
+    this.materialAttenuation = attenuation.register();
     this.prevOut = 0;
+    this.feedback = new float[bufferSize];
+  }
+
+  public void calculateBuffer() {
+    process(bufIn[0], bufOut[0], bufferSize);
+  }
+
+  // Processes a block of input. The feedback path reads the previous output, so the block is split
+  // into chunks no longer than the delay's shortest tap. out must not alias in.
+  public void process(float[] in, float[] out, int n) {
+    long start = metrics == AudioMetrics.NONE ? 0 : System.nanoTime();
+    delay.fitResonances();
+    if (fading != null) {
+      fading.fitResonances();
+    }
+    int i = 0;
+    while (i < n) {
+      int chunk = Math.min(Math.min(n - i, feedback.length), delay.minDelay());
+      boolean buffered = chunk == 0;
+      if (buffered) {
+        // Zero-length resonance: the delay reads its own input, so run this sample on its own.
+        out[i] = delay.calculate(in[i] + prevOut);
+        if (fading != null) {
+          faded[0] = fading.calculate(in[i] + prevOut);
+        }
+        chunk = 1;
+      } else {
+        // Delay
+        delay.render(out, i, chunk);
+        if (fading != null) {
+          fading.render(faded, 0, chunk);
+        }
+      }
+      if (fading != null) {
+        crossfade(out, i, chunk);
+      }
+      
+      // Spectral decay
+      materialAttenuation.process(out, out, i, chunk);
+      
+      for (int j = 0; j < chunk; j++) {
+        // Artificial decay
+        out[i + j] *= reverberance;
+        
+        if(goalReverberance != reverberance){
+          reverberance += MathUtils.constrain(goalReverberance - reverberance, -velocity, velocity);
+        }
+        
+        // Register input
+        feedback[j] = in[i + j] + prevOut;
+        prevOut = out[i + j];
+      }
+      if (!buffered) {
+        delay.write(feedback, 0, chunk);
+        if (fading != null) {
+          fading.write(feedback, 0, chunk);
+        }
+      }
+      if (fading != null && fadeLeft == 0) {
+        fading = null;
+      }
+      i += chunk;
+    }
+    if (metrics != AudioMetrics.NONE) {
+      metrics.block(System.nanoTime() - start, n);
+      delay.reportTaps(n);
+    }
+  }
+
+  // Feeds the delay lines what process() would have, given that it produced out, without reading a
+  // single tick. A SwitchedReverb calls it while its convolver stands in for the reverb, so that the
+  // reverb carries on from the same history when it takes over again. A tier switch meanwhile
+  // completes at once, as nothing of the fading tier is heard.
+  public void prime(float[] in, float[] out, int n) {
+    delay.fitResonances();
+    fading = null;
+    fadeLeft = 0;
+    int i = 0;
+    while (i < n) {
+      int chunk = Math.min(n - i, feedback.length);
+      for (int j = 0; j < chunk; j++) {
+        if (goalReverberance != reverberance) {
+          reverberance += MathUtils.constrain(goalReverberance - reverberance, -velocity, velocity);
+        }
+        feedback[j] = in[i + j] + prevOut;
+        prevOut = out[i + j];
+      }
+      delay.write(feedback, 0, chunk);
+      i += chunk;
+    }
+  }
+
+  // Equal power crossfade from the tier fading out to the one playing. Both read the same input history
+  // through different ticks, so their outputs are uncorrelated and the tail keeps its level.
+  private void crossfade(float[] out, int off, int n) {
+    for (int j = 0; j < n; j++) {
+      float x = 1 - (float)fadeLeft / fadeLength;
+      out[off + j] = (float)(out[off + j] * Math.sqrt(x) + faded[j] * Math.sqrt(1 - x));
+      if (fadeLeft > 0) {
+        fadeLeft--;
+      }
+    }
+  }
+
+  // Builds a velvet delay for every quality tier, reusing the current delay for a tier on the same
+  // sequence, and starts on the first tier. Only the density and rotations of each tier matter here.
+  // Allocates, so call it before processing starts.
+  public void setTiers(QualityTier[] qualities) {
+    float sampleRate = context.getSampleRate();
+    VelvetDelay[] built = new VelvetDelay[qualities.length];
+    for (int t = 0; t < qualities.length; t++) {
+      QualityTier quality = qualities[t];
+      int binLength = Math.round(sampleRate / quality.density);
+      if (delay.seed == seed && delay.binLength == binLength && delay.rotations == quality.rotations) {
+        built[t] = delay;
+      } else {
+        VelvetSequence sequence = VelvetSequence.get(seed, sampleRate, binLength, quality.rotations);
+        built[t] = new VelvetDelay((int)sampleRate, quality.rotations, sequence.tickOffsets, sequence.tickGains, seed, binLength, delay.window, sampleRate);
+      }
+    }
+    this.tiers = built;
+    this.faded = new float[bufferSize];
+    this.fadeLength = Math.max((int)(TIERFADE * sampleRate), 1);
+    if (built[0] != delay) {
+      built[0].takeOver(delay);
+      if (!Arrays.asList(built).contains(delay)) {
+        delay.close();
+      }
+      delay = built[0];
+    }
+    this.tier = 0;
+    this.fading = null;
   }
 
-  public float calculate() {
-    // Register input
-    float in = processInput();
-    float sample = in + prevOut;
-    
-    // Delay
-    sample = delay.calculate(sample);
-    
-    // Spectral decay
-    sample = materialAttenuation.calculate(sample, this);
-    
-    // Artificial decay
-    sample *= reverberance;
-    
-    if(goalReverberance != reverberance){
-      reverberance += MathUtils.constrain(goalReverberance - reverberance, -velocity, velocity);
+  // Crossfades to quality tier t (0 is the richest) from the next block on. A switch during a
+  // crossfade cuts off the tier that was fading out. Doesn't allocate, and leaves the version alone, as
+  // the room itself doesn't change.
+  public void setTier(int t) {
+    if (tiers == null) {
+      return;
     }
-    
-    // Output
-    prevOut = sample;
-    return sample;
+    t = Math.min(Math.max(t, 0), tiers.length - 1);
+    if (t == tier) {
+      return;
+    }
+    VelvetDelay next = tiers[t];
+    next.takeOver(delay);
+    fading = delay;
+    fadeLeft = fadeLength;
+    delay = next;
+    tier = t;
+  }
+
+  public int getTier() {
+    return tier;
+  }
+
+  // Number of quality tiers, 1 if none were set.
+  public int getTiers() {
+    return tiers == null ? 1 : tiers.length;
+  }
+
+  // True while a change of tier is crossfading.
+  public boolean isFading() {
+    return fading != null;
+  }
+
+  // Reports block timing to metrics, and the taps of the velvet delay to the delay's metrics.
+  public void setMetrics(AudioMetrics metrics) {
+    this.metrics = metrics;
   }
   
+  // Sets how many samples share one evaluation of the velvet rotation crossfade.
+  public void setControlBlock(int samples){
+    delay.setControlBlock(samples);
+    if (tiers != null) {
+      for (VelvetDelay other : tiers) {
+        other.setControlBlock(samples);
+      }
+    }
+  }
+
   // Artificially change the reverberance of the room
   public void setOpenness(float openness){
     goalReverberance = 1 - openness;
+    version++;
+  }
+  
+  public int getVersion(){
+    return version;
   }
 
-  // Compile all inputs into a single channel
-  private float processInput() {
-    if (x.length == 1) {
-      return x[0];
-    } else {
-      float sum = 0;
-      for (float f : x) {
-        sum += f;
+  // The reverberance the room is settling towards.
+  public float getReverberance(){
+    return goalReverberance;
+  }
+
+  // A detached copy of this reverb reading the given window. It shares the tick tables of every tier
+  // and the filter design, and starts with empty buffers.
+  public ModularReverb copy(float[] window) {
+    ModularReverb copy = new ModularReverb(context, new VelvetDelay(delay, window), materialAttenuation.getFilter());
+    copy.seed = seed;
+    if (tiers != null) {
+      copy.tiers = new VelvetDelay[tiers.length];
+      for (int t = 0; t < tiers.length; t++) {
+        copy.tiers[t] = t == tier ? copy.delay : new VelvetDelay(tiers[t], window);
       }
-      return sum;
+      copy.tier = tier;
+      copy.faded = new float[bufferSize];
+      copy.fadeLength = fadeLength;
     }
+    copy.copyRoom(this);
+    return copy;
   }
-  
+
+  // Takes over the settled reverberance, quality tier and tick position of source, and clears the buffers.
+  public void copyRoom(ModularReverb source) {
+    this.reverberance = this.goalReverberance = source.goalReverberance;
+    this.velocity = source.velocity;
+    if (tiers != null && source.tiers != null && tiers.length == source.tiers.length) {
+      this.tier = source.tier;
+      this.delay = tiers[tier];
+    }
+    this.delay.theta = source.delay.theta < delay.rotations ? source.delay.theta : 0;
+    reset();
+  }
+
+  // Clears the delay line, feedback and filter history, and ends any tier crossfade.
+  public void reset() {
+    delay.clear();
+    fading = null;
+    prevOut = 0;
+    materialAttenuation.reset();
+  }
+
+  // Frees the velvet delay lines. The reverb can't be processed afterwards.
+  public void close() {
+    delay.close();
+    if (tiers != null) {
+      for (VelvetDelay other : tiers) {
+        if (other != delay) {
+          other.close();
+        }
+      }
+    }
+  }
+
   // Set the guranteed delays, which manifest as resonances
-  public void setResonance(ArrayList<Integer> resonances){
+  public void setResonance(int[] resonances){
     delay.setResonances(resonances);
+    if (tiers != null) {
+      for (VelvetDelay other : tiers) {
+        other.setResonances(resonances);
+      }
+    }
+    version++;
   }
 }
@@ -0,0 +1,82 @@
+import beads.*;
+
+// N-channel room. Each output channel runs its own chain, with the velvet sequence of the preset's seed
+// plus its channel number and its own jittered wall positions, so the channels come out decorrelated.
+// Channels are processed in parallel on a BlockWorkers pool, and joined before the next block.
+// A mono input is fed to every channel; an N-channel input feeds channel to channel.
+class MultichannelRoom extends UGen {
+  private final ReverbChain[] chains;
+  private final Runnable[] tasks;
+  private final BlockWorkers workers;
+
+  // The block being processed, read by the channel tasks
+  private float[][] blockIn;
+  private float[][] blockOut;
+  private int blockLength;
+
+  public MultichannelRoom(UGen input, int channels, RoomPreset preset, BlockWorkers workers) {
+    this(input.getContext(), channels, preset, workers);
+    addInput(input);
+  }
+
+  public MultichannelRoom(AudioContext context, int channels, RoomPreset preset, BlockWorkers workers) {
+    super(context, channels, channels);
+    this.workers = workers;
+    this.chains = new ReverbChain[channels];
+    this.tasks = new Runnable[channels];
+    for (int c = 0; c < channels; c++) {
+      final int channel = c;
+      RoomPreset room = preset.copy();
+      room.seed = preset.seed + c;
+      chains[c] = new ReverbChain(context, room);
+      tasks[c] = () -> chains[channel].process(blockIn[channel], blockOut[channel], blockLength);
+    }
+  }
+
+  public void calculateBuffer() {
+    process(bufIn, bufOut, bufferSize);
+  }
+
+  // Processes one block of every channel. in[c] and out[c] may be the same array.
+  public void process(float[][] in, float[][] out, int n) {
+    blockIn = in;
+    blockOut = out;
+    blockLength = n;
+    workers.run(tasks, chains.length);
+  }
+
+  public void setSize(int l, int w, int h) {
+    for (ReverbChain chain : chains) {
+      chain.setSize(l, w, h);
+    }
+  }
+
+  public void setFactor(float factor) {
+    for (ReverbChain chain : chains) {
+      chain.setFactor(factor);
+    }
+  }
+
+  public void setOpenness(float openness) {
+    for (ReverbChain chain : chains) {
+      chain.setOpenness(openness);
+    }
+  }
+
+  public void setDampingFrequency(float frequency) {
+    for (ReverbChain chain : chains) {
+      chain.setDampingFrequency(frequency);
+    }
+  }
+
+  // Frees the delay lines of every channel. The workers are left to their owner.
+  public void close() {
+    for (ReverbChain chain : chains) {
+      chain.close();
+    }
+  }
+
+  public int getChannels() {
+    return chains.length;
+  }
+}
@@ -0,0 +1,52 @@
+import beads.*;
+import java.io.File;
+import java.io.IOException;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// Headless entry point. Renders a WAV file through the reverb chain as fast as the CPU allows.
+// Usage: java OfflineRenderer <in.wav> <out.wav> [preset] [key=value ...]
+// Presets are listed in RoomPreset, and keys match its fields (length, width, height, density, ...).
+class OfflineRenderer {
+  public static final int BLOCKSIZE = 512;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: java OfflineRenderer <in.wav> <out.wav> [preset] [key=value ...]");
+      System.exit(2);
+    }
+    RoomPreset preset = RoomPreset.parse(args, 2);
+    System.out.println("Room: " + preset);
+    RenderStats stats = render(new File(args[0]), new File(args[1]), preset, BLOCKSIZE);
+    System.out.println(stats);
+  }
+
+  // Renders in to out. Input may be any format AudioSystem reads; output is 16-bit mono WAV.
+  public static RenderStats render(File in, File out, RoomPreset preset, int blockSize) throws IOException, UnsupportedAudioFileException {
+    return render(in, out, preset, blockSize, null);
+  }
+
+  // As above, taking the room's tap tables from cache when it has them.
+  public static RenderStats render(File in, File out, RoomPreset preset, int blockSize, RoomCache cache) throws IOException, UnsupportedAudioFileException {
+    AudioInputStream source = ReverbStream.toPcm16(AudioSystem.getAudioInputStream(in));
+    float sampleRate = source.getFormat().getSampleRate();
+    long tailFrames = (long)(preset.tail * sampleRate);
+    // Some inputs don't say how long they are. Then the writer streams until the source and tail run
+    // out, and fixes up the header afterwards.
+    long sourceFrames = source.getFrameLength();
+    long totalFrames = sourceFrames == AudioSystem.NOT_SPECIFIED ? AudioSystem.NOT_SPECIFIED : sourceFrames + tailFrames;
+
+    long start = System.nanoTime();
+    ReverbChain chain = new ReverbChain(ReverbChain.offlineContext(sampleRate, blockSize), preset, cache);
+    ReverbStream stream = new ReverbStream(source, chain, tailFrames);
+    try {
+      AudioSystem.write(new AudioInputStream(stream, stream.getFormat(), totalFrames), AudioFileFormat.Type.WAVE, out);
+    } finally {
+      stream.close();
+      chain.close();
+    }
+    return new RenderStats(in.getName(), stream.getFrames(), sampleRate, System.nanoTime() - start);
+  }
+}
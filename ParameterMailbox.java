@@ -0,0 +1,140 @@
+import beads.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free single-producer, single-consumer channel for parameter changes.
+// The UI thread posts changes; the audio thread applies them before each frame, so components never
+// see a parameter change in the middle of a block and filter coefficients are always designed whole.
+// Register with AudioContext.invokeBeforeEveryFrame(). Messages live in pre-allocated slots.
+class ParameterMailbox extends Bead {
+  // Message kinds
+  public static final int ROOM_SIZE = 0;
+  public static final int ECHO_FACTOR = 1;
+  public static final int DAMPING_FREQUENCY = 2;
+  public static final int OPENNESS = 3;
+  private static final int KINDS = 4;
+
+  private static final int CAPACITY = 64;
+  private static final int MASK = CAPACITY - 1;
+
+  // Targets, only touched by the audio thread
+  private final EarlyReflections reflections;
+  private final ModularReverb reverb;
+  private final BiquadComponent damping;
+
+  // Message slots
+  private final int[] kinds;
+  private final float[] a, b, c;
+  // Next slot to read (written by the consumer) and next slot to fill (written by the producer)
+  private final AtomicLong head;
+  private final AtomicLong tail;
+
+  // Latest value of each kind that didn't fit in the queue, only touched by the producer
+  private final boolean[] pending;
+  private final float[] pendingA, pendingB, pendingC;
+
+  public ParameterMailbox(EarlyReflections reflections, ModularReverb reverb, BiquadComponent damping) {
+    this.reflections = reflections;
+    this.reverb = reverb;
+    this.damping = damping;
+    this.kinds = new int[CAPACITY];
+    this.a = new float[CAPACITY];
+    this.b = new float[CAPACITY];
+    this.c = new float[CAPACITY];
+    this.head = new AtomicLong();
+    this.tail = new AtomicLong();
+    this.pending = new boolean[KINDS];
+    this.pendingA = new float[KINDS];
+    this.pendingB = new float[KINDS];
+    this.pendingC = new float[KINDS];
+  }
+
+  // Producer side. Call these from a single (UI) thread.
+
+  public void setSize(int l, int w, int h) {
+    post(ROOM_SIZE, l, w, h);
+  }
+
+  public void setFactor(float factor) {
+    post(ECHO_FACTOR, factor, 0, 0);
+  }
+
+  public void setDampingFrequency(float frequency) {
+    post(DAMPING_FREQUENCY, frequency, 0, 0);
+  }
+
+  public void setOpenness(float openness) {
+    post(OPENNESS, openness, 0, 0);
+  }
+
+  // Queues a change. If the queue is full, the change is held back and replaced by any later change of
+  // the same kind, then sent by the next post() or flush().
+  public void post(int kind, float valueA, float valueB, float valueC) {
+    flush();
+    if (pending[kind] || !offer(kind, valueA, valueB, valueC)) {
+      pending[kind] = true;
+      pendingA[kind] = valueA;
+      pendingB[kind] = valueB;
+      pendingC[kind] = valueC;
+    }
+  }
+
+  // Retries any held back changes. Call periodically from the producer, e.g. once per draw().
+  public void flush() {
+    for (int kind = 0; kind < KINDS; kind++) {
+      if (pending[kind] && offer(kind, pendingA[kind], pendingB[kind], pendingC[kind])) {
+        pending[kind] = false;
+      }
+    }
+  }
+
+  private boolean offer(int kind, float valueA, float valueB, float valueC) {
+    long t = tail.get();
+    if (t - head.get() == CAPACITY) {
+      return false;
+    }
+    int slot = (int)(t & MASK);
+    kinds[slot] = kind;
+    a[slot] = valueA;
+    b[slot] = valueB;
+    c[slot] = valueC;
+    // Publish the slot after its contents
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  // Consumer side. Runs on the audio thread before each frame.
+
+  protected void messageReceived(Bead message) {
+    drain();
+  }
+
+  // Applies every queued change in order.
+  public void drain() {
+    long h = head.get();
+    long t = tail.get();
+    while (h != t) {
+      int slot = (int)(h & MASK);
+      apply(kinds[slot], a[slot], b[slot], c[slot]);
+      h++;
+      // Hand the slot back to the producer
+      head.lazySet(h);
+    }
+  }
+
+  private void apply(int kind, float valueA, float valueB, float valueC) {
+    switch (kind) {
+      case ROOM_SIZE:
+        reflections.setSize((int)valueA, (int)valueB, (int)valueC);
+        break;
+      case ECHO_FACTOR:
+        reflections.setFactor(valueA);
+        break;
+      case DAMPING_FREQUENCY:
+        damping.setFrequency(valueA);
+        break;
+      case OPENNESS:
+        reverb.setOpenness(valueA);
+        break;
+    }
+  }
+}
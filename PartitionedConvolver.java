@@ -0,0 +1,177 @@
+import java.util.Arrays;
+
+// Uniformly partitioned overlap-save convolution.
+// The impulse response is cut into partitions of one block each, and the spectra of past input blocks
+// are kept in a frequency-domain delay line. Each block costs two FFTs of twice the block size plus
+// one complex multiply-add per partition and bin. Blocks are processed whole, so there is no latency
+// beyond the block itself.
+// The impulse response is double buffered: prepare() may build a new one on another thread while
+// process() runs, and the owner calls swap() once prepare() has returned.
+class PartitionedConvolver {
+  private final int blockSize;
+  private final int bins;
+  private final int maxPartitions;
+  private final Fft fft;
+
+  // Impulse response spectra, active and being prepared
+  private float[][] responseRe, responseIm;
+  private float[][] pendingRe, pendingIm;
+  private int partitions;
+  private int pendingPartitions;
+
+  // Frequency-domain delay line of input spectra, newest at head
+  private final float[][] historyRe, historyIm;
+  private int head;
+  // Last two blocks of input, in the time domain
+  private final float[] window;
+
+  // Scratch for process() and for prepare(), kept apart so they may run on different threads
+  private final float[] re, im;
+  private final float[] accRe, accIm;
+  private final float[] prepareRe, prepareIm;
+
+  public PartitionedConvolver(int blockSize, int maxLength) {
+    this.blockSize = blockSize;
+    this.bins = blockSize + 1;
+    this.maxPartitions = Math.max(1, (maxLength + blockSize - 1) / blockSize);
+    this.fft = new Fft(blockSize * 2);
+    this.responseRe = new float[maxPartitions][bins];
+    this.responseIm = new float[maxPartitions][bins];
+    this.pendingRe = new float[maxPartitions][bins];
+    this.pendingIm = new float[maxPartitions][bins];
+    this.historyRe = new float[maxPartitions][bins];
+    this.historyIm = new float[maxPartitions][bins];
+    this.window = new float[blockSize * 2];
+    this.re = new float[blockSize * 2];
+    this.im = new float[blockSize * 2];
+    this.accRe = new float[bins];
+    this.accIm = new float[bins];
+    this.prepareRe = new float[blockSize * 2];
+    this.prepareIm = new float[blockSize * 2];
+  }
+
+  // Transforms the first length samples of ir into the pending impulse response.
+  // Samples beyond the maximum length given at construction are dropped.
+  public void prepare(float[] ir, int length) {
+    length = Math.min(length, maxPartitions * blockSize);
+    int count = (length + blockSize - 1) / blockSize;
+    for (int p = 0; p < count; p++) {
+      int start = p * blockSize;
+      int n = Math.min(blockSize, length - start);
+      Arrays.fill(prepareRe, 0);
+      Arrays.fill(prepareIm, 0);
+      System.arraycopy(ir, start, prepareRe, 0, n);
+      fft.forward(prepareRe, prepareIm);
+      System.arraycopy(prepareRe, 0, pendingRe[p], 0, bins);
+      System.arraycopy(prepareIm, 0, pendingIm[p], 0, bins);
+    }
+    pendingPartitions = count;
+  }
+
+  // Makes the last prepared impulse response active. Input history is kept.
+  public void swap() {
+    float[][] t = responseRe;
+    responseRe = pendingRe;
+    pendingRe = t;
+    t = responseIm;
+    responseIm = pendingIm;
+    pendingIm = t;
+    partitions = pendingPartitions;
+  }
+
+  // Convolves n samples of input into out. n must be a multiple of the block size; in and out may alias.
+  public void process(float[] in, float[] out, int n) {
+    checkLength(n);
+    for (int off = 0; off < n; off += blockSize) {
+      pushBlock(in, off);
+      convolve(out, off);
+    }
+  }
+
+  // Adds n samples to the input history without producing output, so that a later switch to process()
+  // starts with the full history.
+  public void push(float[] in, int n) {
+    checkLength(n);
+    for (int off = 0; off < n; off += blockSize) {
+      pushBlock(in, off);
+    }
+  }
+
+  // Forgets all input history.
+  public void reset() {
+    for (int p = 0; p < maxPartitions; p++) {
+      Arrays.fill(historyRe[p], 0);
+      Arrays.fill(historyIm[p], 0);
+    }
+    Arrays.fill(window, 0);
+    head = 0;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  // Partitions of the active impulse response; this many blocks after the input stops, the output is silent.
+  public int getPartitions() {
+    return partitions;
+  }
+
+  public int getMaxPartitions() {
+    return maxPartitions;
+  }
+
+  private void checkLength(int n) {
+    if (n % blockSize != 0) {
+      throw new IllegalArgumentException("Convolver processes whole blocks of " + blockSize + ", got " + n);
+    }
+  }
+
+  // Slides one block into the time-domain window and stores its spectrum at the head of the history.
+  private void pushBlock(float[] in, int off) {
+    System.arraycopy(window, blockSize, window, 0, blockSize);
+    System.arraycopy(in, off, window, blockSize, blockSize);
+    head++;
+    if (head == maxPartitions) {
+      head = 0;
+    }
+    System.arraycopy(window, 0, re, 0, blockSize * 2);
+    Arrays.fill(im, 0);
+    fft.forward(re, im);
+    System.arraycopy(re, 0, historyRe[head], 0, bins);
+    System.arraycopy(im, 0, historyIm[head], 0, bins);
+  }
+
+  // Multiplies the history with the impulse response and writes the valid half of the result.
+  private void convolve(float[] out, int off) {
+    Arrays.fill(accRe, 0);
+    Arrays.fill(accIm, 0);
+    int slot = head;
+    for (int p = 0; p < partitions; p++) {
+      float[] xr = historyRe[slot], xi = historyIm[slot];
+      float[] hr = responseRe[p], hi = responseIm[p];
+      for (int k = 0; k < bins; k++) {
+        accRe[k] += xr[k] * hr[k] - xi[k] * hi[k];
+        accIm[k] += xr[k] * hi[k] + xi[k] * hr[k];
+      }
+      slot--;
+      if (slot < 0) {
+        slot = maxPartitions - 1;
+      }
+    }
+    // Rebuild the full spectrum from the half spectrum of the real signal
+    int size = blockSize * 2;
+    for (int k = 0; k < bins; k++) {
+      re[k] = accRe[k];
+      im[k] = accIm[k];
+    }
+    for (int k = bins; k < size; k++) {
+      re[k] = accRe[size - k];
+      im[k] = -accIm[size - k];
+    }
+    fft.inverse(re, im);
+    float scale = 1f / size;
+    for (int i = 0; i < blockSize; i++) {
+      out[off + i] = re[blockSize + i] * scale;
+    }
+  }
+}
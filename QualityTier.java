@@ -0,0 +1,35 @@
+// One step of the quality ladder a CpuGovernor moves along: the velvet tick density, the rotations of
+// the velvet sequence, and the image source order of the early reflections. Ladders run from the
+// richest tier to the cheapest.
+class QualityTier {
+  // Sparsest velvet density a ladder goes down to
+  static final int MINDENSITY = 25;
+
+  public final int density;
+  public final int rotations;
+  public final int order;
+
+  public QualityTier(int density, int rotations, int order) {
+    this.density = Math.max(density, 1);
+    this.rotations = Math.max(rotations, 1);
+    this.order = Math.min(Math.max(order, 1), ImageSources.MAXORDER);
+  }
+
+  // Four tiers down from the given density and order, each summing about half the taps of the one
+  // above: half the ticks and one order less, then a single rotation (one velvet pass instead of two),
+  // then half the ticks again. The filters and resonances cost the same in every tier, so in small
+  // rooms, where the window holds few ticks, the steps save less.
+  public static QualityTier[] ladder(int density, int order) {
+    int half = Math.max(density / 2, MINDENSITY);
+    return new QualityTier[] {
+      new QualityTier(density, ModularReverb.ROTATIONS, order),
+      new QualityTier(half, ModularReverb.ROTATIONS, order - 1),
+      new QualityTier(half, 1, 1),
+      new QualityTier(Math.max(density / 4, MINDENSITY), 1, 1)
+    };
+  }
+
+  public String toString() {
+    return "density=" + density + " rotations=" + rotations + " order=" + order;
+  }
+}
@@ -0,0 +1,457 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+// Renders audio through a reverb chain over HTTP on localhost.
+// Usage: java RenderService [--port=N] [--threads=N] [--jobs=N] [--cache=FILE]
+//
+//   POST /render?preset=hall&length=30&order=2 ...  renders the request body. Query keys are RoomPreset
+//        keys plus "preset"; the body is any file AudioSystem reads, or raw 16-bit little-endian PCM
+//        when the query has rate= (and channels=, default 1). The answer is 16-bit mono: a WAV when the
+//        input's length is known, raw PCM otherwise.
+//   GET  /stats  requests, latency and throughput of each endpoint, and the renders in flight.
+//
+// Each request is handled on its own virtual thread (a plain thread before Java 21), which only does
+// I/O. The DSP runs chunk by chunk on a fixed pool of threads, so renders share the cores however many
+// clients there are. At most --jobs renders run at once; beyond that the service answers 503 with
+// Retry-After rather than queueing. Both bodies are streamed in chunked encoding: a render reads its next
+// chunk only after writing the last one, so a slow client slows its own render through TCP flow control
+// and nothing is held beyond one chunk, whatever the length of the file.
+class RenderService {
+  static final int DEFAULTPORT = 8765;
+  // Frames read, processed and written at a time
+  static final int CHUNK = 8 * OfflineRenderer.BLOCKSIZE;
+  // Delay lines grow with the room and the tail, and velvet tables with the density, so bound what a
+  // request can ask for
+  static final int MAXSIZE = 500;
+  static final float MAXTAIL = 60;
+
+  private final HttpServer server;
+  private final ExecutorService requests;
+  private final ThreadPoolExecutor dsp;
+  private final Semaphore admission;
+  private final int maxJobs;
+  private final RoomCache cache;
+  private final List<EndpointStats> endpoints = new ArrayList<EndpointStats>();
+
+  public static void main(String[] args) throws Exception {
+    int port = DEFAULTPORT;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int jobs = -1;
+    File cacheFile = null;
+    for (String arg : args) {
+      if (arg.startsWith("--port=")) {
+        port = Integer.parseInt(arg.substring(7));
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(arg.substring(10));
+      } else if (arg.startsWith("--jobs=")) {
+        jobs = Integer.parseInt(arg.substring(7));
+      } else if (arg.startsWith("--cache=")) {
+        cacheFile = new File(arg.substring(8));
+      } else {
+        System.err.println("Usage: java RenderService [--port=N] [--threads=N] [--jobs=N] [--cache=FILE]");
+        System.exit(2);
+      }
+    }
+    if (jobs < 0) {
+      jobs = threads * 2;
+    }
+    final File saveTo = cacheFile;
+    final RoomCache cache = cacheFile == null ? new RoomCache(BatchRenderer.CACHEBYTES) : RoomCache.load(cacheFile, BatchRenderer.CACHEBYTES);
+    final RenderService service = new RenderService(port, threads, jobs, cache);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      service.stop(1);
+      System.out.println(service.getStats());
+      if (saveTo != null) {
+        try {
+          cache.save(saveTo);
+        } catch (IOException e) {
+          System.err.println(saveTo + ": " + e);
+        }
+      }
+    }));
+    service.start();
+    System.out.println("Rendering on http://localhost:" + service.getPort() + "/render with " + threads + " threads, " + jobs + " jobs at most");
+  }
+
+  // Binds to the loopback address; port 0 picks a free one. cache may be null.
+  public RenderService(int port, int threads, int maxJobs, RoomCache cache) throws IOException {
+    this.maxJobs = maxJobs;
+    this.cache = cache;
+    this.admission = new Semaphore(maxJobs);
+    // A render has at most one chunk queued, so the queue never fills
+    final AtomicInteger count = new AtomicInteger();
+    this.dsp = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxJobs), task -> {
+      Thread thread = new Thread(task, "render-dsp-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.requests = requestExecutor();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), maxJobs);
+    server.setExecutor(requests);
+    addEndpoint("/render", this::render);
+    addEndpoint("/stats", this::stats);
+  }
+
+  // A virtual thread per request where the runtime has them (Java 21 on), a cached pool before.
+  // Admission control keeps the cached pool's threads to the renders in flight plus quick rejections.
+  static ExecutorService requestExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "render-request");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  // Stops taking requests, waits up to delay seconds for the ones in progress, then stops the pools.
+  public void stop(int delay) {
+    server.stop(delay);
+    requests.shutdown();
+    dsp.shutdown();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public List<EndpointStats> getEndpoints() {
+    return endpoints;
+  }
+
+  public String getStats() {
+    StringBuilder text = new StringBuilder();
+    text.append(String.format(Locale.US, "Renders: %d in flight of %d, %d DSP threads, %d chunks queued\n",
+      maxJobs - admission.availablePermits(), maxJobs, dsp.getMaximumPoolSize(), dsp.getQueue().size()));
+    for (EndpointStats stats : endpoints) {
+      text.append(stats).append('\n');
+    }
+    if (cache != null) {
+      text.append(cache).append('\n');
+    }
+    text.append(String.format(Locale.US, "VelvetSequence: %d sequences, %.1f of %.1f MB\n",
+      VelvetSequence.size(), VelvetSequence.getBytes() / 1048576.0, VelvetSequence.MAXBYTES / 1048576.0));
+    return text.toString();
+  }
+
+  private void addEndpoint(String path, HttpHandler handler) {
+    final EndpointStats stats = new EndpointStats(path);
+    endpoints.add(stats);
+    server.createContext(path, exchange -> serve(exchange, handler, stats));
+  }
+
+  // Runs handler, counting the bytes each way and timing the whole exchange into stats.
+  private void serve(HttpExchange exchange, HttpHandler handler, EndpointStats stats) throws IOException {
+    long start = System.nanoTime();
+    CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+    CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+    exchange.setStreams(in, out);
+    boolean failed = false;
+    try {
+      handler.handle(exchange);
+    } catch (Exception e) {
+      failed = true;
+      System.err.println(exchange.getRequestURI() + ": " + e);
+      if (exchange.getResponseCode() < 0) {
+        reply(exchange, 500, e + "\n");
+      }
+    } finally {
+      exchange.close();
+      Object frames = exchange.getAttribute("frames");
+      Object sampleRate = exchange.getAttribute("sampleRate");
+      stats.record(failed ? 500 : exchange.getResponseCode(), System.nanoTime() - start, in.count, out.count,
+        frames == null ? 0 : (Long)frames, sampleRate == null ? 1 : (Float)sampleRate);
+    }
+  }
+
+  private void render(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("POST")) {
+      reply(exchange, 405, "POST the audio to render\n");
+      return;
+    }
+    if (!admission.tryAcquire()) {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      reply(exchange, 503, "Busy: " + maxJobs + " renders in flight\n");
+      return;
+    }
+    try {
+      RoomPreset preset;
+      AudioInputStream source;
+      // Every mistake in the request is the client's, so all of them answer 400 rather than 500
+      try {
+        Map<String, String> query = query(exchange.getRequestURI());
+        preset = room(query);
+        source = open(exchange.getRequestBody(), query);
+        check(preset, source.getFormat().getSampleRate());
+      } catch (IllegalArgumentException e) {
+        reply(exchange, 400, e.getMessage() + "\n");
+        return;
+      } catch (UnsupportedAudioFileException e) {
+        reply(exchange, 415, "Unsupported audio: " + e.getMessage() + "\n");
+        return;
+      }
+      render(exchange, source, preset);
+    } finally {
+      admission.release();
+    }
+  }
+
+  // Streams source through a new chain into the response, a chunk at a time, with the DSP on the pool.
+  private void render(HttpExchange exchange, AudioInputStream source, final RoomPreset preset) throws IOException {
+    final float sampleRate = source.getFormat().getSampleRate();
+    int channels = source.getFormat().getChannels();
+    long tailFrames = (long)(preset.tail * sampleRate);
+    long sourceFrames = source.getFrameLength();
+    boolean wav = sourceFrames != AudioSystem.NOT_SPECIFIED;
+
+    final ReverbChain chain = compute(() -> new ReverbChain(ReverbChain.offlineContext(sampleRate, OfflineRenderer.BLOCKSIZE), preset, cache));
+    final byte[] inBytes = new byte[CHUNK * channels * 2];
+    final float[] samples = new float[CHUNK];
+    final byte[] outBytes = new byte[CHUNK * 2];
+    long frames = 0;
+    try {
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("Content-Type", wav ? "audio/wav" : "application/octet-stream");
+      headers.set("X-Sample-Rate", Float.toString(sampleRate));
+      headers.set("X-Room", preset.toString());
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      if (wav) {
+        out.write(wavHeader(sampleRate, sourceFrames + tailFrames));
+      }
+      boolean sourceDone = false;
+      while (true) {
+        int n = 0;
+        if (!sourceDone) {
+          int filled = readFully(source, inBytes);
+          sourceDone = filled < inBytes.length;
+          n = filled / (channels * 2);
+          ReverbStream.mixDown(inBytes, n, channels, samples);
+        }
+        if (n == 0) {
+          // Source is exhausted, feed silence for the tail
+          n = (int)Math.min(CHUNK, tailFrames);
+          if (n == 0) {
+            break;
+          }
+          tailFrames -= n;
+          java.util.Arrays.fill(samples, 0, n, 0);
+        }
+        final int count = n;
+        compute(() -> {
+          chain.process(samples, samples, count);
+          return null;
+        });
+        ReverbStream.encode(samples, n, outBytes);
+        out.write(outBytes, 0, n * 2);
+        frames += n;
+      }
+      out.close();
+    } finally {
+      source.close();
+      chain.close();
+      exchange.setAttribute("frames", frames);
+      exchange.setAttribute("sampleRate", sampleRate);
+    }
+  }
+
+  // Runs task on the DSP pool and waits for it.
+  private <T> T compute(Callable<T> task) throws IOException {
+    try {
+      return dsp.submit(task).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Render interrupted");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private void stats(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET")) {
+      reply(exchange, 405, "GET the stats\n");
+      return;
+    }
+    reply(exchange, 200, getStats());
+  }
+
+  // The room for a request: a preset named by preset=, then the other RoomPreset keys on top.
+  // Parameters that don't depend on the sample rate are checked here, the rest by check().
+  static RoomPreset room(Map<String, String> query) {
+    RoomPreset preset = RoomPreset.named(query.getOrDefault("preset", "default"));
+    for (Map.Entry<String, String> entry : query.entrySet()) {
+      String key = entry.getKey();
+      if (!key.equals("preset") && !key.equals("rate") && !key.equals("channels")) {
+        preset.set(key, entry.getValue());
+      }
+    }
+    if (Math.max(preset.length, Math.max(preset.width, preset.height)) > MAXSIZE
+      || Math.min(preset.length, Math.min(preset.width, preset.height)) < 1) {
+      throw new IllegalArgumentException("Room sides must be 1 to " + MAXSIZE + " ft");
+    }
+    if (!(preset.tail >= 0 && preset.tail <= MAXTAIL)) {
+      throw new IllegalArgumentException("Tail must be 0 to " + MAXTAIL + " s");
+    }
+    if (!(preset.stereoWidth >= 0 && preset.stereoWidth <= 1)) {
+      throw new IllegalArgumentException("Stereo width must be 0 to 1");
+    }
+    return preset;
+  }
+
+  // Checks the velvet density against the input's sample rate: at least one tick per second, and at
+  // least two samples per bin.
+  static void check(RoomPreset preset, float sampleRate) {
+    int maxDensity = (int)(sampleRate / 2);
+    if (preset.density < 1 || preset.density > maxDensity) {
+      throw new IllegalArgumentException("Density must be 1 to " + maxDensity + " ticks per second at " + sampleRate + " Hz");
+    }
+  }
+
+  // Raw 16-bit little-endian PCM when the query gives its rate, otherwise any file AudioSystem reads,
+  // converted to 16-bit PCM. Only the header is read here.
+  static AudioInputStream open(InputStream body, Map<String, String> query) throws IOException, UnsupportedAudioFileException {
+    if (query.containsKey("rate")) {
+      float rate = Float.parseFloat(query.get("rate"));
+      int channels = Integer.parseInt(query.getOrDefault("channels", "1"));
+      if (!(rate >= 1000 && rate <= 384000) || channels < 1 || channels > 32) {
+        throw new IllegalArgumentException("Unsupported rate or channels: " + rate + ", " + channels);
+      }
+      return new AudioInputStream(body, new AudioFormat(rate, 16, channels, true, false), AudioSystem.NOT_SPECIFIED);
+    }
+    return ReverbStream.toPcm16(AudioSystem.getAudioInputStream(new BufferedInputStream(body)));
+  }
+
+  static Map<String, String> query(URI uri) {
+    Map<String, String> query = new LinkedHashMap<String, String>();
+    String raw = uri.getRawQuery();
+    if (raw == null || raw.isEmpty()) {
+      return query;
+    }
+    for (String pair : raw.split("&")) {
+      int split = pair.indexOf('=');
+      if (split < 0) {
+        throw new IllegalArgumentException("Expected key=value, got: " + pair);
+      }
+      query.put(URLDecoder.decode(pair.substring(0, split), StandardCharsets.UTF_8),
+        URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+    }
+    return query;
+  }
+
+  // Header of a 16-bit mono WAV of the given length, clamped to what the format can describe.
+  static byte[] wavHeader(float sampleRate, long frames) {
+    long dataBytes = Math.min(frames * 2, 0xffffffffL - 36);
+    ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+    header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt((int)(36 + dataBytes));
+    header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16);
+    header.putShort((short)1).putShort((short)1).putInt((int)sampleRate).putInt((int)sampleRate * 2);
+    header.putShort((short)2).putShort((short)16);
+    header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt((int)dataBytes);
+    return header.array();
+  }
+
+  // Reads until buffer is full or the stream ends. Returns the bytes read.
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int filled = 0;
+    while (filled < buffer.length) {
+      int count = in.read(buffer, filled, buffer.length - filled);
+      if (count < 0) {
+        break;
+      }
+      filled += count;
+    }
+    return filled;
+  }
+
+  private static void reply(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+// Throughput of one offline render.
+class RenderStats {
+  public final String name;
+  public final long frames;
+  public final float sampleRate;
+  public final long nanos;
+
+  public RenderStats(String name, long frames, float sampleRate, long nanos) {
+    this.name = name;
+    this.frames = frames;
+    this.sampleRate = sampleRate;
+    this.nanos = nanos;
+  }
+
+  // Seconds of audio rendered per second of wall time.
+  public double realTimeFactor() {
+    return (frames / (double)sampleRate) / (nanos / 1e9);
+  }
+
+  public double samplesPerSecond() {
+    return frames / (nanos / 1e9);
+  }
+
+  public String toString() {
+    return String.format(java.util.Locale.US, "%s: %d frames (%.2f s of audio) in %.3f s, %.1fx real time, %.0f samples/s",
+      name, frames, frames / (double)sampleRate, nanos / 1e9, realTimeFactor(), samplesPerSecond());
+  }
+}
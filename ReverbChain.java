@@ -0,0 +1,118 @@
+import beads.*;
+
+// The EarlyReflections -> ModularReverb -> Gain chain of the sketch, driven directly by blocks
+// instead of through the AudioContext graph, for offline and batch rendering.
+class ReverbChain {
+  final BiquadComponent damping;
+  final EarlyReflections reflections;
+  final ModularReverb reverb;
+  final float gain;
+  private final int blockSize;
+  private final float[] input;
+  private final float[] reflectionsOut;
+  private final float[] reverbOut;
+  private Meter meter;
+
+  public ReverbChain(AudioContext context, RoomPreset preset) {
+    this(context, preset, null);
+  }
+
+  // Reuses the tap tables of an earlier room with the same stereo width and density from cache, if
+  // given, and adds them to it otherwise.
+  public ReverbChain(AudioContext context, RoomPreset preset, RoomCache cache) {
+    this.blockSize = context.getBufferSize();
+    float sampleRate = context.getSampleRate();
+    this.damping = new BiquadComponent(BiquadComponent.LOWPASS, sampleRate, preset.dampingFrequency(), 1, 1);
+    this.reflections = new EarlyReflections(context, preset.length, preset.width, preset.height, preset.stereoWidth, damping);
+    this.reflections.setOrder(preset.order);
+    RoomKey key = RoomKey.tables(sampleRate, preset.stereoWidth, preset.density, ModularReverb.ROTATIONS, preset.seed);
+    RoomTables tables = cache == null ? null : cache.getTables(key);
+    if (tables == null) {
+      this.reverb = new ModularReverb(context, reflections.reverbWindow, preset.density, ModularReverb.ROTATIONS, preset.seed, 1 - preset.openness, damping);
+      if (cache != null) {
+        cache.putTables(key, RoomTables.of(reflections, reverb));
+      }
+    } else {
+      reflections.setJitter(tables.fbJitter, tables.lrJitter);
+      VelvetDelay delay = tables.delay((int)sampleRate, reflections.reverbWindow, sampleRate);
+      this.reverb = new ModularReverb(context, delay, 1 - preset.openness, damping);
+    }
+    this.reverb.setResonance(reflections.resonances);
+    this.reflections.setFactor(preset.echoFactor());
+    this.gain = preset.gain;
+    this.input = new float[blockSize];
+    this.reflectionsOut = new float[blockSize];
+    this.reverbOut = new float[blockSize];
+  }
+
+  // An AudioContext that never touches an audio device, for building chains that are driven directly.
+  public static AudioContext offlineContext(float sampleRate, int blockSize) {
+    return new AudioContext(new NonrealtimeIO(), blockSize, new IOAudioFormat(sampleRate, 16, 0, 1));
+  }
+
+  // Processes n samples of mono input. in and out may be the same array.
+  public void process(float[] in, float[] out, int n) {
+    for (int off = 0; off < n; off += blockSize) {
+      int chunk = Math.min(blockSize, n - off);
+      System.arraycopy(in, off, input, 0, chunk);
+      // Same order as the sketch, where the Gain pulls the reverb before the reflections.
+      reverb.process(input, reverbOut, chunk);
+      reflections.process(input, reflectionsOut, chunk);
+      for (int i = 0; i < chunk; i++) {
+        out[off + i] = (reverbOut[i] + reflectionsOut[i]) * gain;
+      }
+      if (meter != null) {
+        meter.stage(Meter.INPUT, input, 0, chunk);
+        meter.stage(Meter.REFLECTIONS, reflectionsOut, 0, chunk);
+        meter.stage(Meter.REVERB, reverbOut, 0, chunk);
+        meter.stage(Meter.OUTPUT, out, off, chunk);
+        meter.tail(reverbOut, 0, chunk);
+        meter.transition(reflections.getTransition());
+        meter.advance(chunk);
+      }
+    }
+  }
+
+  // Feeds the stage levels, crossfade position and tail spectrum to meter.
+  public void setMeter(Meter meter) {
+    this.meter = meter;
+  }
+
+  public void setSize(int l, int w, int h) {
+    reflections.setSize(l, w, h);
+  }
+
+  public void setFactor(float factor) {
+    reflections.setFactor(factor);
+  }
+
+  public void setOpenness(float openness) {
+    reverb.setOpenness(openness);
+  }
+
+  public void setDampingFrequency(float frequency) {
+    damping.setFrequency(frequency);
+  }
+
+  // Sets how many samples share one evaluation of the crossfade gains, in both the reflections and reverb.
+  public void setControlBlock(int samples) {
+    reflections.setControlBlock(samples);
+    reverb.setControlBlock(samples);
+  }
+
+  // Clears the reflections and reverb, as if the room had only ever heard silence.
+  public void reset() {
+    reflections.reset();
+    reverb.reset();
+  }
+
+  // Frees the delay lines of both components. The chain can't be processed afterwards.
+  public void close() {
+    reflections.close();
+    reverb.close();
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+}
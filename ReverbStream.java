@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.io.InputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+// Pulls audio from a source stream through a ReverbChain, one block at a time, and serves the result
+// as 16-bit little-endian mono PCM. Only one block is held in memory, whatever the length of the input.
+// After the source ends, silence is fed through the chain so the tail rings out.
+class ReverbStream extends InputStream {
+  private final AudioInputStream source;
+  private final int channels;
+  private final ReverbChain chain;
+  private long tailFrames;
+  private long frames;
+
+  private final byte[] inBytes;
+  private final float[] block;
+  private final byte[] outBytes;
+  private int outPosition;
+  private int outLength;
+  private boolean sourceDone;
+
+  // source must be 16-bit signed little-endian PCM, see toPcm16().
+  public ReverbStream(AudioInputStream source, ReverbChain chain, long tailFrames) {
+    this.source = source;
+    this.channels = source.getFormat().getChannels();
+    this.chain = chain;
+    this.tailFrames = tailFrames;
+    int blockSize = chain.getBlockSize();
+    this.inBytes = new byte[blockSize * channels * 2];
+    this.block = new float[blockSize];
+    this.outBytes = new byte[blockSize * 2];
+  }
+
+  // Converts any stream AudioSystem can decode into 16-bit signed little-endian PCM.
+  public static AudioInputStream toPcm16(AudioInputStream stream) {
+    AudioFormat format = stream.getFormat();
+    AudioFormat target = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+    if (format.matches(target)) {
+      return stream;
+    }
+    return AudioSystem.getAudioInputStream(target, stream);
+  }
+
+  // Format of the bytes served by this stream.
+  public AudioFormat getFormat() {
+    return new AudioFormat(source.getFormat().getSampleRate(), 16, 1, true, false);
+  }
+
+  // Frames processed so far, including the tail.
+  public long getFrames() {
+    return frames;
+  }
+
+  public int read() throws IOException {
+    if (outPosition == outLength && !fill()) {
+      return -1;
+    }
+    return outBytes[outPosition++] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (outPosition == outLength && !fill()) {
+      return -1;
+    }
+    int count = Math.min(len, outLength - outPosition);
+    System.arraycopy(outBytes, outPosition, b, off, count);
+    outPosition += count;
+    return count;
+  }
+
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // Renders the next block into outBytes. Returns false once the source and the tail are used up.
+  private boolean fill() throws IOException {
+    int n = 0;
+    if (!sourceDone) {
+      n = readSource();
+    }
+    if (n == 0) {
+      // Source is exhausted, feed silence for the tail
+      n = (int)Math.min(block.length, tailFrames);
+      if (n == 0) {
+        return false;
+      }
+      tailFrames -= n;
+      java.util.Arrays.fill(block, 0, n, 0);
+    }
+    chain.process(block, block, n);
+    encode(block, n, outBytes);
+    outPosition = 0;
+    outLength = n * 2;
+    frames += n;
+    return true;
+  }
+
+  // Reads up to a block of frames from the source and mixes them down into block.
+  private int readSource() throws IOException {
+    int frameBytes = channels * 2;
+    int filled = 0;
+    while (filled < inBytes.length) {
+      int count = source.read(inBytes, filled, inBytes.length - filled);
+      if (count < 0) {
+        sourceDone = true;
+        break;
+      }
+      filled += count;
+    }
+    int n = filled / frameBytes;
+    mixDown(inBytes, n, channels, block);
+    return n;
+  }
+
+  // Mixes n frames of 16-bit little-endian PCM with the given channels down into mono samples.
+  static void mixDown(byte[] bytes, int n, int channels, float[] samples) {
+    for (int i = 0; i < n; i++) {
+      float sum = 0;
+      for (int c = 0; c < channels; c++) {
+        int index = (i * channels + c) * 2;
+        sum += (short)((bytes[index] & 0xff) | (bytes[index + 1] << 8));
+      }
+      samples[i] = sum / (channels * 32768f);
+    }
+  }
+
+  // Encodes n mono samples as 16-bit little-endian PCM, clipping at full scale.
+  static void encode(float[] samples, int n, byte[] bytes) {
+    for (int i = 0; i < n; i++) {
+      int value = Math.round(MathUtils.constrain(samples[i], -1, 1) * 32767);
+      bytes[2 * i] = (byte)value;
+      bytes[2 * i + 1] = (byte)(value >> 8);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+import beads.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One pre-allocated room send in a VoicePool. An emitter acquires a voice, feeds it from a source UGen
+// (or by writing getInput() before each block), and releases it when done. A released voice rings out
+// its tail and returns to the pool once it falls silent.
+class ReverbVoice {
+  static final int FREE = 0;
+  // Being reset by the acquiring thread; the audio thread leaves it alone
+  static final int STARTING = 1;
+  static final int ACTIVE = 2;
+  static final int RELEASING = 3;
+  // Taken over by acquire() while it may still be processing; the audio thread resets it first
+  static final int STOLEN = 4;
+
+  final AtomicInteger state;
+  final ReverbChain chain;
+  final float[] input;
+  final float[] output;
+  volatile UGen source;
+  // Block in which the voice was released, so the longest ringing voice is stolen first
+  volatile long releasedAt;
+  // Number of times this voice has been handed out; an owner whose voice was stolen sees it change
+  volatile int acquisitions;
+  int quietBlocks;
+  private final VoicePool pool;
+
+  ReverbVoice(VoicePool pool, ReverbChain chain) {
+    this.pool = pool;
+    this.chain = chain;
+    this.state = new AtomicInteger(FREE);
+    this.input = new float[chain.getBlockSize()];
+    this.output = new float[chain.getBlockSize()];
+  }
+
+  // Feeds the voice from source, pulled once per block on the audio thread.
+  // With no source, the voice reads whatever was last written to getInput().
+  public void setSource(UGen source) {
+    this.source = source;
+  }
+
+  public float[] getInput() {
+    return input;
+  }
+
+  // The voice's output for the last block.
+  public float[] getOutput() {
+    return output;
+  }
+
+  public int getAcquisitions() {
+    return acquisitions;
+  }
+
+  // Stops feeding the voice. Its tail rings out before it is reused.
+  // Once a voice has been stolen (getAcquisitions() changed), the previous owner must leave it alone.
+  public void release() {
+    pool.release(this);
+  }
+
+  void process() {
+    chain.process(input, output, input.length);
+  }
+}
@@ -0,0 +1,207 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Least-recently-used cache of room tap tables and impulse responses, bounded by memory.
+// Recalling a room that is already cached skips generating its tick tables, and freezing a room whose
+// response is cached skips rendering it. The cache can be saved to a compact binary file and loaded
+// again for warm starts. All methods are thread safe.
+class RoomCache {
+  private static final int MAGIC = 0x52564243; // "RVBC"
+  // Bumped whenever keys or entries change, so older files load as an empty cache
+  private static final int FORMAT = 3;
+  private static final byte TABLES = 0;
+  private static final byte IMPULSE = 1;
+
+  private final long maxBytes;
+  // Access-ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<RoomKey, Object> entries;
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public RoomCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.entries = new LinkedHashMap<RoomKey, Object>(16, 0.75f, true);
+  }
+
+  // Loads a cache saved by save(), or returns an empty one if the file does not exist.
+  public static RoomCache load(File file, long maxBytes) throws IOException {
+    RoomCache cache = new RoomCache(maxBytes);
+    if (!file.exists()) {
+      return cache;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a room cache: " + file);
+      }
+      if (in.readInt() != FORMAT) {
+        return cache;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        RoomKey key = RoomKey.read(in);
+        byte type = in.readByte();
+        if (type == TABLES) {
+          float fbJitter = in.readFloat();
+          float lrJitter = in.readFloat();
+          int rotations = in.readInt();
+          int seed = in.readInt();
+          int binLength = in.readInt();
+          int[] offsets = new int[in.readInt()];
+          float[] gains = new float[offsets.length];
+          for (int j = 0; j < offsets.length; j++) {
+            offsets[j] = in.readInt();
+            gains[j] = in.readFloat();
+          }
+          cache.put(key, new RoomTables(fbJitter, lrJitter, rotations, offsets, gains, seed, binLength));
+        } else if (type == IMPULSE) {
+          cache.put(key, readFloats(in));
+        } else {
+          throw new IOException("Unknown room cache entry: " + type);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return cache;
+  }
+
+  // Writes every entry, least recently used first, so loading restores the same order.
+  public synchronized void save(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeInt(entries.size());
+      for (Map.Entry<RoomKey, Object> entry : entries.entrySet()) {
+        entry.getKey().write(out);
+        Object value = entry.getValue();
+        if (value instanceof RoomTables) {
+          RoomTables tables = (RoomTables)value;
+          out.writeByte(TABLES);
+          out.writeFloat(tables.fbJitter);
+          out.writeFloat(tables.lrJitter);
+          out.writeInt(tables.rotations);
+          out.writeInt(tables.seed);
+          out.writeInt(tables.binLength);
+          out.writeInt(tables.tickOffsets.length);
+          for (int j = 0; j < tables.tickOffsets.length; j++) {
+            out.writeInt(tables.tickOffsets[j]);
+            out.writeFloat(tables.tickGains[j]);
+          }
+        } else {
+          out.writeByte(IMPULSE);
+          writeFloats(out, (float[])value);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  public synchronized RoomTables getTables(RoomKey key) {
+    return (RoomTables)get(key);
+  }
+
+  // The cached impulse response. Callers must not modify it.
+  public synchronized float[] getImpulse(RoomKey key) {
+    return (float[])get(key);
+  }
+
+  public synchronized void putTables(RoomKey key, RoomTables tables) {
+    put(key, tables);
+  }
+
+  // Keeps ir as is, so the caller must not modify it afterwards.
+  public synchronized void putImpulse(RoomKey key, float[] ir) {
+    put(key, ir);
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized String toString() {
+    return String.format(java.util.Locale.US, "RoomCache: %d entries, %.1f of %.1f MB, %d hits, %d misses, %d evictions",
+      entries.size(), bytes / 1048576.0, maxBytes / 1048576.0, hits, misses, evictions);
+  }
+
+  private Object get(RoomKey key) {
+    Object value = entries.get(key);
+    if (value == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return value;
+  }
+
+  // Adds or replaces an entry, then evicts the least recently used until the cache fits.
+  // An entry larger than the whole cache is not kept.
+  private synchronized void put(RoomKey key, Object value) {
+    long size = sizeOf(value);
+    if (size > maxBytes) {
+      return;
+    }
+    Object previous = entries.put(key, value);
+    bytes += size;
+    if (previous != null) {
+      bytes -= sizeOf(previous);
+    }
+    Iterator<Object> eldest = entries.values().iterator();
+    while (bytes > maxBytes) {
+      bytes -= sizeOf(eldest.next());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  private static long sizeOf(Object value) {
+    if (value instanceof RoomTables) {
+      return ((RoomTables)value).bytes();
+    }
+    return 16 + 4L * ((float[])value).length;
+  }
+
+  private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+    out.writeInt(values.length);
+    for (float value : values) {
+      out.writeFloat(value);
+    }
+  }
+
+  private static float[] readFloats(DataInputStream in) throws IOException {
+    float[] values = new float[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readFloat();
+    }
+    return values;
+  }
+}
@@ -0,0 +1,99 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Quantised room parameters identifying an entry in a RoomCache or the VelvetSequence bank.
+// Rooms that round to the same key share their cached tap tables or impulse response.
+class RoomKey {
+  static final int TABLES = 0;
+  static final int IMPULSE = 1;
+  static final int SEQUENCE = 2;
+  // Fields describing each wall material in an impulse key
+  private static final int MATERIALFIELDS = 4;
+
+  private final int[] fields;
+
+  RoomKey(int[] fields) {
+    this.fields = fields;
+  }
+
+  // Velvet tick tables and wall jitter, which only depend on the stereo width, tick density and seed.
+  // Stereo width is kept to hundredths.
+  public static RoomKey tables(float sampleRate, float stereoWidth, int density, int rotations, int seed) {
+    return new RoomKey(new int[] {TABLES, Math.round(sampleRate), Math.round(stereoWidth * 100), density, rotations, seed});
+  }
+
+  // A shared velvet sequence, for VelvetSequence.
+  public static RoomKey sequence(int seed, float sampleRate, int binLength, int rotations) {
+    return new RoomKey(new int[] {SEQUENCE, seed, Float.floatToIntBits(sampleRate), binLength, rotations});
+  }
+
+  // The impulse response of the reverb in a reflections and reverb pair, the reflections holding the
+  // room its window and resonances are built on, truncated to length samples. The key
+  // covers everything the response depends on: the room size in feet, echo factor and reverberance
+  // to thousandths, the damping cutoff to the hertz, the image source order, the exact jitter, the
+  // seed, bin length and rotations the tick tables were generated from, and the design of each wall
+  // material. Nothing is hashed, so different rooms never share a key.
+  public static RoomKey impulse(EarlyReflections reflections, ModularReverb reverb, int length) {
+    float[] size = reflections.getSize();
+    VelvetDelay delay = reverb.delay;
+    int[] room = {
+      IMPULSE, Math.round(delay.sampleRate), length,
+      Math.round(size[0]), Math.round(size[1]), Math.round(size[2]),
+      Float.floatToIntBits(reflections.getFbJitter()), Float.floatToIntBits(reflections.getLrJitter()),
+      Math.round(reflections.getEchoFactor() * 1000), Math.round(reverb.getReverberance() * 1000),
+      Math.round(reverb.materialAttenuation.getFilter().getFrequency()),
+      delay.seed, delay.binLength, delay.rotations, reflections.getOrder()
+    };
+    int[] fields = Arrays.copyOf(room, room.length + 6 * MATERIALFIELDS);
+    for (int wall = 0; wall < 6; wall++) {
+      material(reflections.getWallMaterial(wall), fields, room.length + wall * MATERIALFIELDS);
+    }
+    return new RoomKey(fields);
+  }
+
+  // The design of a wall material: its type (-1 where there is none), cutoff to the hertz, and gain and
+  // slope to thousandths.
+  private static void material(BiquadComponent material, int[] fields, int off) {
+    if (material == null) {
+      fields[off] = -1;
+      return;
+    }
+    fields[off] = material.getType();
+    fields[off + 1] = Math.round(material.getFrequency());
+    fields[off + 2] = Math.round(material.getGain() * 1000);
+    fields[off + 3] = Math.round(material.getS() * 1000);
+  }
+
+  public int getKind() {
+    return fields[0];
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeByte(fields.length);
+    for (int field : fields) {
+      out.writeInt(field);
+    }
+  }
+
+  static RoomKey read(DataInputStream in) throws IOException {
+    int[] fields = new int[in.readUnsignedByte()];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = in.readInt();
+    }
+    return new RoomKey(fields);
+  }
+
+  public boolean equals(Object other) {
+    return other instanceof RoomKey && Arrays.equals(fields, ((RoomKey)other).fields);
+  }
+
+  public int hashCode() {
+    return Arrays.hashCode(fields);
+  }
+
+  public String toString() {
+    return "RoomKey" + Arrays.toString(fields);
+  }
+}
@@ -0,0 +1,162 @@
+import java.lang.Math.*;
+
+// Parameters for a whole reverb chain, matching the sliders of the sketch.
+// Presets can be picked by name and adjusted with key=value overrides.
+class RoomPreset {
+  // Room dimensions in feet
+  public int length;
+  public int width;
+  public int height;
+  public float stereoWidth;
+  // Highest image source order of the early reflections
+  public int order;
+  // Velvet ticks per second
+  public int density;
+  // Picks the velvet sequence, so the same seed always renders the same tail
+  public int seed;
+  // Slider values, 0-1
+  public float echo;
+  public float damping;
+  public float openness;
+  // Output gain
+  public float gain;
+  // Seconds of silence appended when rendering, so the tail rings out
+  public float tail;
+
+  public RoomPreset() {
+    this.length = 20;
+    this.width = 45;
+    this.height = 9;
+    this.stereoWidth = 0.5f;
+    this.order = 1;
+    this.density = 200;
+    this.seed = VelvetDelay.SEED;
+    this.echo = 0.5f;
+    this.damping = 0.7f;
+    this.openness = 0;
+    this.gain = 0.3f;
+    this.tail = 2;
+  }
+
+  public static RoomPreset named(String name) {
+    RoomPreset preset = new RoomPreset();
+    if (name.equals("default")) {
+      return preset;
+    } else if (name.equals("booth")) {
+      preset.setSize(6, 8, 8);
+      preset.echo = 0.3f;
+      preset.damping = 0.9f;
+      preset.tail = 0.5f;
+    } else if (name.equals("hall")) {
+      preset.setSize(90, 60, 40);
+      preset.echo = 0.6f;
+      preset.damping = 0.5f;
+      preset.tail = 4;
+    } else if (name.equals("cathedral")) {
+      preset.setSize(200, 120, 90);
+      preset.echo = 0.7f;
+      preset.damping = 0.4f;
+      preset.tail = 8;
+    } else {
+      throw new IllegalArgumentException("Unknown room preset: " + name);
+    }
+    return preset;
+  }
+
+  // This room with the size, echo, damping and tail of a named preset, the fields presets set, and
+  // every other field kept.
+  public RoomPreset withNamed(String name) {
+    RoomPreset named = named(name);
+    RoomPreset room = copy();
+    room.setSize(named.length, named.width, named.height);
+    room.echo = named.echo;
+    room.damping = named.damping;
+    room.tail = named.tail;
+    return room;
+  }
+
+  // Applies a preset name (if the first argument has no '=') followed by key=value overrides.
+  public static RoomPreset parse(String[] args, int from) {
+    RoomPreset preset = new RoomPreset();
+    for (int i = from; i < args.length; i++) {
+      int split = args[i].indexOf('=');
+      if (split < 0) {
+        if (i != from) {
+          throw new IllegalArgumentException("Expected key=value, got: " + args[i]);
+        }
+        preset = named(args[i]);
+      } else {
+        preset.set(args[i].substring(0, split), args[i].substring(split + 1));
+      }
+    }
+    return preset;
+  }
+
+  public RoomPreset set(String key, String value) {
+    if (key.equals("length") || key.equals("l")) {
+      length = Integer.parseInt(value);
+    } else if (key.equals("width") || key.equals("w")) {
+      width = Integer.parseInt(value);
+    } else if (key.equals("height") || key.equals("h")) {
+      height = Integer.parseInt(value);
+    } else if (key.equals("stereoWidth")) {
+      stereoWidth = MathUtils.constrain(Float.parseFloat(value), 0, 1);
+    } else if (key.equals("order")) {
+      order = Math.min(Math.max(Integer.parseInt(value), 1), ImageSources.MAXORDER);
+    } else if (key.equals("density")) {
+      density = Integer.parseInt(value);
+    } else if (key.equals("seed")) {
+      seed = Integer.parseInt(value);
+    } else if (key.equals("echo")) {
+      echo = MathUtils.constrain(Float.parseFloat(value), 0, 0.99f);
+    } else if (key.equals("damping")) {
+      damping = MathUtils.constrain(Float.parseFloat(value), 0, 1);
+    } else if (key.equals("openness")) {
+      openness = MathUtils.constrain(Float.parseFloat(value), 0, 1);
+    } else if (key.equals("gain")) {
+      gain = Float.parseFloat(value);
+    } else if (key.equals("tail")) {
+      tail = Float.parseFloat(value);
+    } else {
+      throw new IllegalArgumentException("Unknown room parameter: " + key);
+    }
+    return this;
+  }
+
+  public void setSize(int length, int width, int height) {
+    this.length = length;
+    this.width = width;
+    this.height = height;
+  }
+
+  public RoomPreset copy() {
+    RoomPreset copy = new RoomPreset();
+    copy.setSize(length, width, height);
+    copy.stereoWidth = stereoWidth;
+    copy.order = order;
+    copy.density = density;
+    copy.seed = seed;
+    copy.echo = echo;
+    copy.damping = damping;
+    copy.openness = openness;
+    copy.gain = gain;
+    copy.tail = tail;
+    return copy;
+  }
+
+  // Cutoff of the damping lowpass, using the same curve as the damping slider.
+  public float dampingFrequency() {
+    return MathUtils.lerp(18000, 100, (float)Math.pow(damping, 0.1));
+  }
+
+  // Echo factor of the early reflections, as set by the echoiness and openness sliders.
+  public float echoFactor() {
+    return echo * (1 - openness);
+  }
+
+  public String toString() {
+    return String.format(java.util.Locale.US,
+      "length=%d width=%d height=%d stereoWidth=%.2f order=%d density=%d seed=%d echo=%.2f damping=%.2f openness=%.2f gain=%.2f tail=%.1f",
+      length, width, height, stereoWidth, order, density, seed, echo, damping, openness, gain, tail);
+  }
+}
@@ -0,0 +1,39 @@
+// The randomised parts of a room: the wall jitter of its reflections and the velvet tick tables of its
+// reverb. Rooms built from the same tables sound the same, so these are what a RoomCache keeps.
+class RoomTables {
+  public final float fbJitter;
+  public final float lrJitter;
+  public final int rotations;
+  public final int[] tickOffsets;
+  public final float[] tickGains;
+  // Seed and bin length of the velvet sequence the tick tables came from
+  public final int seed;
+  public final int binLength;
+
+  public RoomTables(float fbJitter, float lrJitter, int rotations, int[] tickOffsets, float[] tickGains, int seed, int binLength) {
+    this.fbJitter = fbJitter;
+    this.lrJitter = lrJitter;
+    this.rotations = rotations;
+    this.tickOffsets = tickOffsets;
+    this.tickGains = tickGains;
+    this.seed = seed;
+    this.binLength = binLength;
+  }
+
+  // The tables of an existing pair. The arrays are shared, not copied; they are never written after
+  // construction.
+  public static RoomTables of(EarlyReflections reflections, ModularReverb reverb) {
+    VelvetDelay delay = reverb.delay;
+    return new RoomTables(reflections.getFbJitter(), reflections.getLrJitter(), delay.rotations, delay.tickOffsets, delay.tickGains, delay.seed, delay.binLength);
+  }
+
+  // A delay line of the given size running on these tables.
+  public VelvetDelay delay(int bufferSize, float[] window, float sampleRate) {
+    return new VelvetDelay(bufferSize, rotations, tickOffsets, tickGains, seed, binLength, window, sampleRate);
+  }
+
+  // Approximate heap footprint, for the cache's memory bound.
+  public long bytes() {
+    return 64 + 4L * tickOffsets.length + 4L * tickGains.length;
+  }
+}
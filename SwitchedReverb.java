@@ -0,0 +1,294 @@
+import beads.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs EarlyReflections and ModularReverb live, or, when frozen, convolves with the reverb's captured
+// impulse response instead. While the room holds still the reverb is linear and time-invariant (up to
+// the slow rotation of the velvet ticks), so one convolution replaces its whole tap scan. The
+// reflections are a handful of taps, so they keep running live.
+//
+// freeze() snapshots the room into detached copies at the next block boundary, and a background thread
+// renders the reverb's impulse response and transforms it. Meanwhile the live engine keeps playing and
+// the convolver collects input history; once both are complete the output crossfades over to the
+// convolver. While frozen the reverb's delay lines are still fed, from the convolver's output, as its
+// own feedback would have fed them. Any parameter change, or thaw(), hands back to the live reverb,
+// which carries on from that history while the output crossfades back to it.
+//
+// Output is the sum of both components, as the sketch's Gain mixes them. Blocks must be whole multiples
+// of the context's buffer size, which Beads always uses.
+class SwitchedReverb extends UGen {
+  private static final int LIVE = 0;
+  private static final int CAPTURING = 1;
+  private static final int FADING = 2;
+  private static final int FROZEN = 3;
+  private static final int THAWING = 4;
+
+  final EarlyReflections reflections;
+  final ModularReverb reverb;
+  private final PartitionedConvolver convolver;
+  private final int blockSize;
+  private final int fadeLength;
+
+  // Detached copies for rendering the impulse response, and the response itself
+  private final EarlyReflections captureReflections;
+  private final ModularReverb captureReverb;
+  private final float[] impulse;
+
+  // Audio thread state, read from any thread by isFrozen()
+  private volatile int state;
+  // Audio thread state
+  private int frozenVersion;
+  private int fade;
+  private int blocksLeft;
+  private final float[] reflectionsOut;
+  private final float[] reverbOut;
+  private final float[] convolved;
+  private final float[] input;
+
+  // Requests from the UI thread, and hand-off with the capture thread
+  private volatile boolean freezeRequested;
+  private volatile boolean thawRequested;
+  private volatile int captureRequest;
+  private volatile int captureDone;
+  private final Thread captureThread;
+  private volatile RoomCache cache;
+  private Meter meter;
+
+  // irSeconds bounds the captured impulse response, and so the convolution cost per sample.
+  public SwitchedReverb(UGen input, EarlyReflections reflections, ModularReverb reverb, float irSeconds) {
+    this(input.getContext(), reflections, reverb, irSeconds);
+    addInput(input);
+  }
+
+  public SwitchedReverb(AudioContext context, EarlyReflections reflections, ModularReverb reverb, float irSeconds) {
+    super(context, 1, 1);
+    this.reflections = reflections;
+    this.reverb = reverb;
+    this.blockSize = bufferSize;
+    int length = (int)(irSeconds * context.getSampleRate());
+    this.convolver = new PartitionedConvolver(blockSize, length);
+    this.impulse = new float[convolver.getMaxPartitions() * blockSize];
+    this.fadeLength = Math.max(blockSize, (int)(0.05f * context.getSampleRate()));
+
+    this.captureReflections = reflections.copy();
+    this.captureReverb = reverb.copy(captureReflections.reverbWindow);
+    this.captureReverb.setResonance(captureReflections.resonances);
+
+    this.reflectionsOut = new float[blockSize];
+    this.reverbOut = new float[blockSize];
+    this.convolved = new float[blockSize];
+    this.input = new float[blockSize];
+
+    this.captureThread = new Thread(() -> captureLoop(), "SwitchedReverb capture");
+    this.captureThread.setDaemon(true);
+    this.captureThread.start();
+  }
+
+  // Switches to convolution once the impulse response is ready. Safe to call from any thread.
+  public void freeze() {
+    thawRequested = false;
+    freezeRequested = true;
+  }
+
+  // Switches back to the live engine. Safe to call from any thread.
+  public void thaw() {
+    freezeRequested = false;
+    thawRequested = true;
+  }
+
+  // Looks up captured impulse responses in cache before rendering them, and adds the ones it renders.
+  public void setCache(RoomCache cache) {
+    this.cache = cache;
+  }
+
+  // Feeds the stage levels, crossfade position and tail spectrum to meter. Set it before processing starts.
+  public void setMeter(Meter meter) {
+    this.meter = meter;
+  }
+
+  // True while the convolver is producing (some of) the output.
+  public boolean isFrozen() {
+    return state == FADING || state == FROZEN;
+  }
+
+  public void calculateBuffer() {
+    process(bufIn[0], bufOut[0], bufferSize);
+  }
+
+  public void process(float[] in, float[] out, int n) {
+    for (int off = 0; off < n; off += blockSize) {
+      processBlock(in, out, off);
+    }
+  }
+
+  private void processBlock(float[] in, float[] out, int off) {
+    float[] block = in;
+    if (off != 0) {
+      System.arraycopy(in, off, input, 0, blockSize);
+      block = input;
+    }
+    handleRequests();
+    switch (state) {
+      case LIVE:
+        live(block, out, off);
+        break;
+      case CAPTURING:
+        live(block, out, off);
+        convolver.push(block, blockSize);
+        blocksLeft--;
+        if (captureDone == captureRequest && blocksLeft <= 0) {
+          convolver.swap();
+          fade = 0;
+          state = FADING;
+        }
+        break;
+      case FADING:
+        live(block, out, off);
+        convolver.process(block, convolved, blockSize);
+        crossfade(out, off, true);
+        if (fade >= fadeLength) {
+          state = FROZEN;
+        }
+        break;
+      case FROZEN:
+        reflections.process(block, reflectionsOut, blockSize);
+        convolver.process(block, reverbOut, blockSize);
+        reverb.prime(block, reverbOut, blockSize);
+        for (int i = 0; i < blockSize; i++) {
+          out[off + i] = reverbOut[i] + reflectionsOut[i];
+        }
+        break;
+      case THAWING:
+        // Both carry the tail of the input heard so far, the live reverb with the new parameters
+        live(block, out, off);
+        convolver.process(block, convolved, blockSize);
+        crossfade(out, off, false);
+        if (fade >= fadeLength) {
+          state = LIVE;
+        }
+        break;
+    }
+    if (meter != null) {
+      meter(block, out, off);
+    }
+  }
+
+  // Crossfades the reverb part of the output between the live reverb and the convolver, towards the
+  // convolver if toConvolver. Both render the same room from the same input, so their outputs are
+  // correlated and a linear fade keeps the tail's level where an equal power one would swell by 3 dB.
+  private void crossfade(float[] out, int off, boolean toConvolver) {
+    for (int i = 0; i < blockSize; i++) {
+      float mix = fade < fadeLength ? (float)fade / fadeLength : 1;
+      if (!toConvolver) {
+        mix = 1 - mix;
+      }
+      out[off + i] += (convolved[i] - reverbOut[i]) * mix;
+      fade++;
+    }
+  }
+
+  private void meter(float[] in, float[] out, int off) {
+    meter.stage(Meter.INPUT, in, 0, blockSize);
+    meter.stage(Meter.OUTPUT, out, off, blockSize);
+    // While frozen the reverb stage is the convolver's output
+    meter.stage(Meter.REFLECTIONS, reflectionsOut, 0, blockSize);
+    meter.stage(Meter.REVERB, reverbOut, 0, blockSize);
+    meter.tail(reverbOut, 0, blockSize);
+    meter.transition(reflections.getTransition());
+    meter.advance(blockSize);
+  }
+
+  // Handles requests and parameter changes at the block boundary.
+  private void handleRequests() {
+    if (state == LIVE) {
+      thawRequested = false;
+      // The capture copies belong to the capture thread until it finishes the last request
+      if (freezeRequested && captureDone == captureRequest) {
+        freezeRequested = false;
+        startCapture();
+      }
+    } else if (state != THAWING && (thawRequested || version() != frozenVersion)) {
+      thawRequested = false;
+      if (state == CAPTURING) {
+        // Nothing has been heard from the convolver yet
+        state = LIVE;
+      } else {
+        // A thaw during the fade in starts back from where the fade has got to
+        fade = state == FADING ? fadeLength - Math.min(fade, fadeLength) : 0;
+        state = THAWING;
+      }
+    }
+  }
+
+  // Snapshots the room into the capture copies and wakes the capture thread.
+  private void startCapture() {
+    captureReflections.copyRoom(reflections);
+    captureReverb.copyRoom(reverb);
+    frozenVersion = version();
+    convolver.reset();
+    // The convolver needs a full impulse response worth of input history before it can take over
+    blocksLeft = convolver.getMaxPartitions();
+    state = CAPTURING;
+    captureRequest++;
+    LockSupport.unpark(captureThread);
+  }
+
+  private void live(float[] in, float[] out, int off) {
+    // Same order as the sketch, where the Gain pulls the reverb before the reflections.
+    reverb.process(in, reverbOut, blockSize);
+    reflections.process(in, reflectionsOut, blockSize);
+    for (int i = 0; i < blockSize; i++) {
+      out[off + i] = reverbOut[i] + reflectionsOut[i];
+    }
+  }
+
+  private int version() {
+    return reflections.getVersion() + reverb.getVersion()
+      + reflections.attenuation.getFilter().getVersion() + reverb.materialAttenuation.getFilter().getVersion();
+  }
+
+  // Renders the impulse response of the capture reverb and prepares the convolver with it. The capture
+  // reflections only carry the room the reverb's window and resonances are built on.
+  private void captureLoop() {
+    int handled = 0;
+    float[] pulse = new float[blockSize];
+    float[] rendered = new float[blockSize];
+    while (true) {
+      int request = captureRequest;
+      if (request == handled) {
+        LockSupport.park(this);
+        continue;
+      }
+      handled = request;
+      RoomCache cache = this.cache;
+      int version = version();
+      RoomKey key = null;
+      float[] cached = null;
+      if (cache != null) {
+        key = RoomKey.impulse(captureReflections, captureReverb, impulse.length);
+        cached = cache.getImpulse(key);
+      }
+      if (cached != null) {
+        convolver.prepare(cached, cached.length);
+        captureDone = request;
+        continue;
+      }
+
+      for (int off = 0; off < impulse.length; off += blockSize) {
+        pulse[0] = off == 0 ? 1 : 0;
+        captureReverb.process(pulse, rendered, blockSize);
+        System.arraycopy(rendered, 0, impulse, off, blockSize);
+      }
+      // Fade out the last tenth so a truncated tail doesn't click
+      int fadeStart = impulse.length - impulse.length / 10;
+      for (int i = fadeStart; i < impulse.length; i++) {
+        impulse[i] *= (float)(impulse.length - i) / (impulse.length - fadeStart);
+      }
+      convolver.prepare(impulse, impulse.length);
+      // The filter design is shared with the live room, so only keep a response rendered while it held still
+      if (cache != null && version == version()) {
+        cache.putImpulse(key, impulse.clone());
+      }
+      captureDone = request;
+    }
+  }
+}
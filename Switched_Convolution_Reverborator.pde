@@ -8,6 +8,15 @@ EarlyReflections er;
 BiquadComponent attenuation;
 Gain g;
 ModularReverb scr;
+SwitchedReverb switched;
+CpuGovernor governor;
+RoomCache cache;
+ParameterMailbox mailbox;
+Meter meter;
+// Next meter frame to draw, and the scrolling spectrogram of the tail
+long meterFrame;
+float[] meterValues;
+PImage spectrogram;
 File file;
 
 
@@ -64,32 +73,35 @@ void setup() {
 
 void draw() {
   background(0);
+  if (mailbox != null) {
+    mailbox.flush();
+  }
   // Visual adjustments for room size
   int prevX = 0;
   for (int i = 0; i < settings.length; i++) {
     // Check if we're editing this thing.
     if (changing == i) {
-      // Set the corresponding variable
+      // Set the corresponding variable. Changes go through the mailbox, as the audio thread owns the components.
       float realValue = lerp(minmax[i][0], minmax[i][1], constrain(1-((float)mouseY / height), 0, 1));
       switch (i) {
       case 0:
-        er.setSize(round(realValue), round(settings[1]), round(settings[2]));
+        mailbox.setSize(round(realValue), round(settings[1]), round(settings[2]));
         break;
       case 1:
-        er.setSize(round(settings[0]), round(realValue), round(settings[2]));
+        mailbox.setSize(round(settings[0]), round(realValue), round(settings[2]));
         break;
       case 2:
-        er.setSize(round(settings[0]), round(settings[1]), round(realValue));
+        mailbox.setSize(round(settings[0]), round(settings[1]), round(realValue));
         break;
       case 3:
-        er.setFactor(realValue * (1 - settings[5]));
+        mailbox.setFactor(realValue * (1 - settings[5]));
         break;
       case 4:
-        attenuation.setFrequency(lerp(18000, 100, pow(realValue, 0.1)));
+        mailbox.setDampingFrequency(lerp(18000, 100, pow(realValue, 0.1)));
         break;
       case 5:
-        scr.setOpenness(realValue);
-        er.setFactor((1 - realValue) * settings[3]);
+        mailbox.setOpenness(realValue);
+        mailbox.setFactor((1 - realValue) * settings[3]);
       }
       settings[i] = realValue;
       stroke(255, 0, 0);
@@ -103,6 +115,52 @@ void draw() {
     text(label, prevX + 10, 30);
     prevX = x;
   }
+  if (meter != null) {
+    drawMeters();
+  }
+}
+
+// Catches up with the meter ring, scrolling the spectrogram one column per frame, then draws the
+// latest levels. Frames the audio thread has already overwritten are skipped.
+void drawMeters() {
+  MeterRing ring = meter.getRing();
+  meterFrame = Math.max(meterFrame, ring.getOldest());
+  boolean any = false;
+  for (; meterFrame < ring.getWritten(); meterFrame++) {
+    if (!ring.read(meterFrame, meterValues)) {
+      continue;
+    }
+    any = true;
+    spectrogram.loadPixels();
+    for (int y = 0; y < spectrogram.height; y++) {
+      int row = y * spectrogram.width;
+      System.arraycopy(spectrogram.pixels, row + 1, spectrogram.pixels, row, spectrogram.width - 1);
+      float db = meterValues[Meter.SPECTRUM + Meter.BANDS - 1 - y];
+      spectrogram.pixels[row + spectrogram.width - 1] = color(constrain(map(db, -100, 20, 0, 255), 0, 255));
+    }
+    spectrogram.updatePixels();
+  }
+  if (!any && meterFrame == 0) {
+    return;
+  }
+  int top = height - 200;
+  image(spectrogram, 0, top, width, 120);
+  String[] stages = {"In", "ER", "Reverb", "Out"};
+  int barWidth = width / (stages.length + 2);
+  noStroke();
+  for (int s = 0; s < stages.length; s++) {
+    float peak = meterValues[s * 2];
+    float rms = meterValues[s * 2 + 1];
+    fill(80);
+    rect(s * barWidth, top + 130, constrain(peak, 0, 1) * (barWidth - 10), 10);
+    fill(peak > 1 ? color(255, 0, 0) : color(0, 200, 0));
+    rect(s * barWidth, top + 130, constrain(rms, 0, 1) * (barWidth - 10), 10);
+    fill(255);
+    text(stages[s], s * barWidth, top + 160);
+  }
+  fill(255);
+  text("Gain: " + String.format(java.util.Locale.US, "%.2f", meterValues[Meter.GAIN]), stages.length * barWidth, top + 160);
+  text("ER fade: " + String.format(java.util.Locale.US, "%.2f", meterValues[Meter.TRANSITION]), (stages.length + 1) * barWidth, top + 160);
 }
 
 void fileSelected(File f) {
@@ -113,14 +171,33 @@ void fileSelected(File f) {
   player = new SamplePlayer(ac, s);
 
   attenuation = new BiquadComponent(BiquadComponent.LOWPASS, ac.getSampleRate(), lerp(10000, 100, pow(settings[4], 0.1)), 1, 1);
-  er = new EarlyReflections(player, (int)settings[0], (int)settings[1], (int)settings[2], 0.5, attenuation);
-  scr = new ModularReverb(player, er.reverbWindow, 200, 1.0, attenuation);
+  er = new EarlyReflections(ac, (int)settings[0], (int)settings[1], (int)settings[2], 0.5, attenuation);
+  scr = new ModularReverb(ac, er.reverbWindow, 200, 1.0, attenuation);
 
   scr.setResonance(er.resonances);
+  // Visible in jconsole or any JMX client under reverb:*
+  er.setMetrics(new ComponentMetrics(ac.getSampleRate()).register("EarlyReflections", "er"));
+  scr.setMetrics(new ComponentMetrics(ac.getSampleRate()).register("ModularReverb", "scr"));
+  scr.delay.setMetrics(new ComponentMetrics(ac.getSampleRate()).register("VelvetDelay", "scr"));
+  // Steps down to cheaper reverb tiers when frames run late, and reports the tier with the engine metrics.
+  // Before the SwitchedReverb, so its capture copy has every tier.
+  governor = new CpuGovernor(ac.getSampleRate(), er, scr, QualityTier.ladder(200, 2), new ComponentMetrics(ac.getSampleRate()).register("Engine", "ac"));
+  new EngineMonitor(ac, governor).attach(ac);
+  mailbox = new ParameterMailbox(er, scr, attenuation);
+  ac.invokeBeforeEveryFrame(mailbox);
+  // Four seconds of tail covers every room the sliders can make
+  switched = new SwitchedReverb(player, er, scr, 4);
+  // Refreezing a room heard before reuses its impulse response
+  cache = new RoomCache(64L << 20);
+  switched.setCache(cache);
+  // About 43 meter frames a second, with a few seconds of slack for a stalled UI
+  meter = new Meter(ac.getSampleRate(), 1024, 256);
+  meterValues = new float[Meter.FRAMESIZE];
+  spectrogram = createImage(width, Meter.BANDS, RGB);
+  switched.setMeter(meter);
   g = new Gain(ac, 1, 0.3);
 
-  g.addInput(scr);
-  g.addInput(er);
+  g.addInput(switched);
 
   ac.out.addInput(g);
   println("Starting.");
@@ -143,6 +220,14 @@ void keyPressed() {
   if (key == 'o') {
     selectInput("Select an audio file to use.", "fileUpdate");
   }
+  // Freeze the room into a convolution, or go back to the live engine
+  if (key == 'f' && switched != null) {
+    if (switched.isFrozen()) {
+      switched.thaw();
+    } else {
+      switched.freeze();
+    }
+  }
 }
 
 void mousePressed() {
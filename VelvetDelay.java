@@ -1,17 +1,28 @@
 import java.lang.Math.*;
-import java.util.ArrayList;
-import java.util.Random;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 class VelvetDelay {
-  private static final int REFDIST = 300;
-  private static final float SOUNDSPD = 1125.33f;
+  static final int REFDIST = 300;
+  static final float SOUNDSPD = 1125.33f;
   private static final float RESONANCEFAC = 0.1f;
-  float[] buffer;
-  int bufferIndex;
-  ArrayList<ArrayList<Integer>> ticks;
-  ArrayList<ArrayList<Float>> polarities;
-  ArrayList<Integer> guranteedTicks;
-  ArrayList<Integer> guranteedTicks2;
+  // Default samples between evaluations of the rotation crossfade, shared with EarlyReflections
+  public static final int CONTROLBLOCK = 32;
+  // Seed of the velvet sequence when none is given
+  public static final int SEED = 0;
+  // Longest run of samples the block kernel renders at once
+  private static final int SEGMENT = 256;
+  // Input history, off heap. Its write position is where the next input goes.
+  DelayLine line;
+  // Packed tick table, shared with every delay on the same sequence. See VelvetSequence.
+  int[] tickOffsets;
+  float[] tickGains;
+  int ticksPerRotation;
+  int rotations;
+  // Seed and bin length of the VelvetSequence the tables came from, which identify them
+  int seed;
+  int binLength;
+  int[] guranteedTicks;
   float refOffset;
   float theta;
   float[] window;
@@ -19,123 +30,453 @@ class VelvetDelay {
 
   float sampleRate;
 
+  // Rotation crossfade, evaluated once per control block and interpolated in between
+  private int controlBlock = CONTROLBLOCK;
+  private int controlLeft;
+  private int rotIndex;
+  private double gain, gain2;
+  private double slope, slope2;
+  private double thetaStep;
+
+  private AudioMetrics metrics = AudioMetrics.NONE;
+  // Taps summed since the last report, counted per control block
+  private long tapsEvaluated;
+  private int controlTaps;
+
+  // Block kernel: taps of each rotation inside the window, as [rangeStart, rangeEnd) into the tick
+  // table, resolved whenever the window moves
+  private int[] rangeStart;
+  private int[] rangeEnd;
+  private float rangeLow = Float.NaN;
+  private float rangeHigh = Float.NaN;
+  // Per-sample crossfade gains and tap sums of the segment being rendered
+  private final double[] segmentGain = new double[SEGMENT];
+  private final double[] segmentGain2 = new double[SEGMENT];
+  private final float[] sums = new float[SEGMENT];
+  private final float[] sums2 = new float[SEGMENT];
+  private final float[] resonanceSums = new float[SEGMENT];
+  private final float[] slice = new float[SEGMENT];
+  private int segmentRotation;
+  private boolean segmentUsesA, segmentUsesB;
+
   public VelvetDelay(int bufferSize, int rotations, float[] window, int binLength, float sampleRate) {
-    this.buffer = new float[bufferSize];
+    this(bufferSize, rotations, window, binLength, sampleRate, SEED);
+  }
+
+  // bufferSize is the longest resonance the delay must reach; the line also covers the longest tick.
+  public VelvetDelay(int bufferSize, int rotations, float[] window, int binLength, float sampleRate, int seed) {
+    this.velocity = 1;
+    this.window = window;
+    this.sampleRate = sampleRate;
+    this.guranteedTicks = new int[0];
+    this.refOffset = (REFDIST / SOUNDSPD) * sampleRate;
+    VelvetSequence sequence = VelvetSequence.get(seed, sampleRate, binLength, rotations);
+    this.tickOffsets = sequence.tickOffsets;
+    this.tickGains = sequence.tickGains;
+    this.ticksPerRotation = sequence.ticksPerRotation;
+    this.rotations = sequence.rotations;
+    this.seed = seed;
+    this.binLength = binLength;
+    this.line = new DelayLine(maxDelay(bufferSize, tickOffsets));
+    initRanges();
+  }
+
+  // A delay running on existing tick tables, packed as in VelvetSequence, that were generated from seed
+  // and binLength.
+  public VelvetDelay(int bufferSize, int rotations, int[] tickOffsets, float[] tickGains, int seed, int binLength, float[] window, float sampleRate) {
+    this.line = new DelayLine(maxDelay(bufferSize, tickOffsets));
     this.velocity = 1;
     this.window = window;
     this.sampleRate = sampleRate;
-    this.ticks = new ArrayList<ArrayList<Integer>>();
-    this.polarities = new ArrayList<ArrayList<Float>>();
-    this.guranteedTicks = new ArrayList<Integer>();
-    this.guranteedTicks2 = new ArrayList<Integer>();
+    this.guranteedTicks = new int[0];
     this.refOffset = (REFDIST / SOUNDSPD) * sampleRate;
-    initTicks(rotations, binLength);
+    this.tickOffsets = tickOffsets;
+    this.tickGains = tickGains;
+    this.rotations = rotations;
+    this.ticksPerRotation = tickOffsets.length / rotations;
+    this.seed = seed;
+    this.binLength = binLength;
+    initRanges();
+  }
+
+  // A delay with an empty buffer of the same size that shares the tick tables of source.
+  public VelvetDelay(VelvetDelay source, float[] window) {
+    this.line = new DelayLine(source.line.length() - 1);
+    this.velocity = source.velocity;
+    this.window = window;
+    this.sampleRate = source.sampleRate;
+    this.guranteedTicks = new int[0];
+    this.refOffset = source.refOffset;
+    this.tickOffsets = source.tickOffsets;
+    this.tickGains = source.tickGains;
+    this.ticksPerRotation = source.ticksPerRotation;
+    this.rotations = source.rotations;
+    this.seed = source.seed;
+    this.binLength = source.binLength;
+    this.theta = source.theta;
+    initRanges();
+  }
+
+  private void initRanges() {
+    this.rangeStart = new int[rotations];
+    this.rangeEnd = new int[rotations];
+  }
+
+  // The longest delay the line has to hold: the longest tick, or a resonance of bufferSize - 1 samples.
+  private static int maxDelay(int bufferSize, int[] tickOffsets) {
+    int longest = bufferSize - 1;
+    for (int offset : tickOffsets) {
+      longest = Math.max(longest, offset);
+    }
+    return longest;
   }
 
   public float calculate(float in) {
     // Buffer input
-    buffer[bufferIndex] = in;
+    int position = line.position;
+    line.write(in);
+    return sample(position);
+  }
 
-    // Establish tick position
-    int rotIndex = (int)(theta);
-    int rotIndex2 = (rotIndex + 1) % ticks.size();
-    float fade = theta - rotIndex;
+  // Block counterpart of calculate(). Renders in chunks no longer than the shortest active delay,
+  // so every tap is read from samples that are already in the buffer.
+  public void process(float[] in, float[] out, int n) {
+    long start = metrics == AudioMetrics.NONE ? 0 : System.nanoTime();
+    fitResonances();
+    int i = 0;
+    while (i < n) {
+      int chunk = Math.min(n - i, minDelay());
+      if (chunk == 0) {
+        // A zero-length resonance reads the sample being written, so fall back to the per-sample path.
+        out[i] = calculate(in[i]);
+        i++;
+      } else {
+        render(out, i, chunk);
+        write(in, i, chunk);
+        i += chunk;
+      }
+    }
+    if (metrics != AudioMetrics.NONE) {
+      metrics.block(System.nanoTime() - start, n);
+      reportTaps(n);
+    }
+  }
+
+  // Reports block timing and taps evaluated to metrics. When the delay is driven through render() and
+  // write(), the owner times the block and calls reportTaps().
+  public void setMetrics(AudioMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  // Reports the taps summed over the last n samples.
+  void reportTaps(int n) {
+    metrics.taps(tapsEvaluated, n);
+    tapsEvaluated = 0;
+  }
+
+  // Renders the output for the next n samples without buffering them.
+  // n must not exceed minDelay(), and write() must follow with the matching input.
+  //
+  // Tap-major: the samples are split into segments that stay on one pair of rotations, and each tap
+  // in the window adds its gain times a contiguous slice of the line to the segment. The sums are
+  // added in the same order as sample(), so the output matches calculate() exactly.
+  void render(float[] out, int off, int n) {
+    resolveRanges();
+    int position = line.position;
+    int j = 0;
+    while (j < n) {
+      int length = planSegment(Math.min(n - j, SEGMENT));
+      int start = line.wrap(position + j);
+      if (segmentUsesA) {
+        accumulate(segmentRotation, start, length, sums);
+      }
+      if (segmentUsesB) {
+        accumulate((segmentRotation + 1) % rotations, start, length, sums2);
+      }
+      accumulateResonances(start, length);
+      for (int k = 0; k < length; k++) {
+        float sum = 0;
+        if (segmentGain[k] != 0) {
+          sum += sums[k] * segmentGain[k];
+        }
+        if (segmentGain2[k] != 0) {
+          sum += sums2[k] * segmentGain2[k];
+        }
+        sum += resonanceSums[k] * RESONANCEFAC;
+        out[off + j + k] = sum;
+      }
+      j += length;
+    }
+  }
+
+  // Steps the crossfade through up to max samples, as sample() would, stopping before the sample that
+  // moves on to the next rotation. Records each sample's gains (0 where sample() would skip the
+  // rotation) and returns the segment length.
+  private int planSegment(int max) {
+    boolean usesA = false;
+    boolean usesB = false;
+    int k = 0;
+    while (k < max) {
+      if (controlLeft == 0 || (int)theta != rotIndex) {
+        if (k > 0 && (int)theta != segmentRotation) {
+          break;
+        }
+        updateControl();
+      }
+      if (k == 0) {
+        segmentRotation = rotIndex;
+      }
+      segmentGain[k] = gain;
+      segmentGain2[k] = gain2 != 0 || slope2 != 0 ? gain2 : 0;
+      usesA |= gain != 0;
+      usesB |= segmentGain2[k] != 0;
+      gain += slope;
+      gain2 += slope2;
+      controlLeft--;
+      theta += thetaStep;
+      if (theta >= rotations) {
+        theta = 0;
+      }
+      k++;
+    }
+    segmentUsesA = usesA;
+    segmentUsesB = usesB;
+    return k;
+  }
+
+  // Sums the taps of one rotation over length samples from start into sums.
+  private void accumulate(int rotation, int start, int length, float[] sums) {
+    FloatBuffer samples = line.samples;
+    int mask = line.mask;
+    int[] offsets = tickOffsets;
+    float[] gains = tickGains;
+    Arrays.fill(sums, 0, length, 0);
+    for (int i = rangeStart[rotation]; i < rangeEnd[rotation]; i++) {
+      float tickGain = gains[i];
+      int from = (start - offsets[i]) & mask;
+      // The slice may wrap around the end of the line
+      int run = Math.min(length, mask + 1 - from);
+      samples.get(from, slice, 0, run);
+      if (run < length) {
+        samples.get(0, slice, run, length - run);
+      }
+      for (int k = 0; k < length; k++) {
+        sums[k] += slice[k] * tickGain;
+      }
+    }
+  }
+
+  // Sums the guaranteed ticks over length samples from start into resonanceSums.
+  private void accumulateResonances(int start, int length) {
+    FloatBuffer samples = line.samples;
+    int mask = line.mask;
+    int[] echoes = guranteedTicks;
+    Arrays.fill(resonanceSums, 0, length, 0);
+    for (int i = 0; i < echoes.length; i++) {
+      int echo = echoes[i];
+      float distance = 1 + echo / refOffset;
+      for (int k = 0; k < length; k++) {
+        resonanceSums[k] += samples.get((start + k - echo) & mask) / distance;
+      }
+    }
+  }
+
+  // Finds the taps of every rotation inside the window, if it has moved since last time.
+  // Matches velvet(): taps past the low edge, up to and including the first at or past the high edge.
+  private void resolveRanges() {
+    float low = window[0];
+    float high = window[1];
+    if (low == rangeLow && high == rangeHigh) {
+      return;
+    }
+    for (int rotation = 0; rotation < rotations; rotation++) {
+      int start = rotation * ticksPerRotation;
+      int end = start + ticksPerRotation;
+      rangeStart[rotation] = firstAbove(start, end, low);
+      rangeEnd[rotation] = Math.max(Math.min(firstAbove(start, end, (float)Math.ceil(high) - 1) + 1, end), rangeStart[rotation]);
+    }
+    rangeLow = low;
+    rangeHigh = high;
+  }
+
+  // Buffers n samples of input and advances the write position past them.
+  void write(float[] in, int off, int n) {
+    line.write(in, off, n);
+  }
+
+  // The shortest delay, in samples, that any active tap or resonance can currently read.
+  int minDelay() {
+    int shortest = (int)window[0] + 1;
+    int[] echoes = guranteedTicks;
+    for (int i = 0; i < echoes.length; i++) {
+      shortest = Math.min(shortest, echoes[i]);
+    }
+    return Math.max(shortest, 0);
+  }
+
+  // Lengthens the line if the room has grown past it. The resonances are updated in place by their
+  // owner, so this runs once per block.
+  void fitResonances() {
+    int[] echoes = guranteedTicks;
+    for (int i = 0; i < echoes.length; i++) {
+      if (echoes[i] > line.mask) {
+        line.ensure(echoes[i]);
+      }
+    }
+  }
+
+  // Continues from previous, a delay reading the same window: takes over its input history, resonances,
+  // control block and metrics, so its output carries on the same tail. Its own tick position is kept.
+  // Allocates only if previous has a longer line.
+  void takeOver(VelvetDelay previous) {
+    line.ensure(previous.line.length() - 1);
+    line.copyFrom(previous.line);
+    guranteedTicks = previous.guranteedTicks;
+    controlBlock = previous.controlBlock;
+    controlLeft = 0;
+    metrics = previous.metrics;
+    tapsEvaluated = 0;
+  }
+
+  // Empties the buffer. The tick position is kept.
+  public void clear() {
+    line.clear();
+    controlLeft = 0;
+  }
+
+  // Frees the delay line. The delay can't be used afterwards.
+  public void close() {
+    line.close();
+  }
+
+  // The array is read live, so the owner may update its entries in place.
+  public void setResonances(int[] resonances){
+    this.guranteedTicks = resonances;
+  }
+
+  // Sums every tap for the sample at the given buffer position, then advances theta.
+  private float sample(int position) {
+    // A control block ends early when theta reaches the next rotation
+    if (controlLeft == 0 || (int)theta != rotIndex) {
+      updateControl();
+    }
+    int rotIndex2 = (rotIndex + 1) % rotations;
     float sum = 0;
 
     // Perform and sum velvet delays
-    if (fade != 1) {
+    if (gain != 0) {
       // Loop through first ticks and polarities
-      sum += velvet(rotIndex) * Math.pow(1-fade, 0.5);
+      sum += velvet(rotIndex, position) * gain;
     }
-    if (fade != 0) {
+    if (gain2 != 0 || slope2 != 0) {
       // Loop through second ticks and polarities
-      sum += velvet(rotIndex2) * Math.pow(fade, 0.5);
+      sum += velvet(rotIndex2, position) * gain2;
     }
-    
+    gain += slope;
+    gain2 += slope2;
+    controlLeft--;
+
     // Loop through guranteed ticks
-    sum += guranteedVelvet();
-    
-    // Increment buffer and theta
-    bufferIndex++;
-    if (bufferIndex == buffer.length) {
-      bufferIndex = 0;
-    }
-    theta += 0.5 / (window[0]);
-    if (theta >= ticks.size()) {
+    sum += guranteedVelvet(position);
+
+    theta += thetaStep;
+    if (theta >= rotations) {
       theta = 0;
     }
     return sum;
   }
-  
-  public void setResonances(ArrayList<Integer> resonances){
-    this.guranteedTicks = resonances;
+
+  // Evaluates the equal power crossfade between the current rotation and the next at the start and
+  // end of a control block, and the slopes between them.
+  private void updateControl() {
+    tapsEvaluated += (long)controlTaps * (controlBlock - controlLeft);
+    rotIndex = (int)theta;
+    thetaStep = 0.5 / (window[0]);
+    float fade = theta - rotIndex;
+    gain = Math.pow(1-fade, 0.5);
+    gain2 = Math.pow(fade, 0.5);
+    slope = 0;
+    slope2 = 0;
+    if (rotations == 1) {
+      // Nothing to crossfade with, so the one rotation plays alone at full gain, for half the taps
+      gain = 1;
+      gain2 = 0;
+    } else if (controlBlock > 1) {
+      float end = Math.min(fade + (float)(thetaStep * (controlBlock - 1)), 1);
+      slope = (Math.pow(1-end, 0.5) - gain) / (controlBlock - 1);
+      slope2 = (Math.pow(end, 0.5) - gain2) / (controlBlock - 1);
+    }
+    controlLeft = controlBlock;
+    if (metrics != AudioMetrics.NONE) {
+      controlTaps = guranteedTicks.length + (gain != 0 ? tapsInWindow(rotIndex) : 0)
+        + (gain2 != 0 || slope2 != 0 ? tapsInWindow((rotIndex + 1) % rotations) : 0);
+    }
+  }
+
+  // Number of taps velvet() sums for the given rotation with the current window.
+  private int tapsInWindow(int rotation) {
+    int start = rotation * ticksPerRotation;
+    int end = start + ticksPerRotation;
+    int first = firstAbove(start, end, window[0]);
+    // velvet() also sums the first tap at or past the high edge before stopping
+    int last = Math.min(firstAbove(start, end, (float)Math.ceil(window[1]) - 1) + 1, end);
+    return Math.max(last - first, 0);
+  }
+
+  // Index of the first offset in [start, end) above limit, or end if there is none.
+  private int firstAbove(int start, int end, float limit) {
+    int low = start;
+    int high = end;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (tickOffsets[middle] > limit) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  // Sets how many samples share one evaluation of the rotation crossfade. 1 evaluates it every sample,
+  // as the reference.
+  public void setControlBlock(int samples) {
+    this.controlBlock = Math.max(samples, 1);
+    this.controlLeft = 0;
   }
 
   // Velvet delay for only a single rotated index.
-  private float velvet(int rotation) {
-    ArrayList<Integer> tickList = ticks.get(rotation);
-    ArrayList<Float> polarityList = polarities.get(rotation);
+  private float velvet(int rotation, int position) {
+    int[] offsets = tickOffsets;
+    float[] gains = tickGains;
+    FloatBuffer samples = line.samples;
+    int mask = line.mask;
+    float low = window[0];
+    float high = window[1];
+    int start = rotation * ticksPerRotation;
+    int end = start + ticksPerRotation;
     float sum = 0;
-  
-    for (int i = 0; i < tickList.size(); i++) {
-      int offset = tickList.get(i);
-      if (offset > window[0]) {
-        sum += get(-1 * offset) * polarityList.get(i);
+
+    for (int i = start; i < end; i++) {
+      int offset = offsets[i];
+      if (offset > low) {
+        sum += samples.get((position - offset) & mask) * gains[i];
       }
-      if (offset >= window[1]) {
+      if (offset >= high) {
         break;
       }
     }
     return sum;
   }
-  
+
   // Add guranteed delays
-  private float guranteedVelvet() {
+  private float guranteedVelvet(int position) {
+    int[] echoes = guranteedTicks;
     float sum = 0;
-    int index = 0;
-    for (Integer echo : guranteedTicks) {
-        sum += get(-echo) / (1 + echo / refOffset);
-        index++;
+    for (int i = 0; i < echoes.length; i++) {
+        int echo = echoes[i];
+        sum += line.get(position, echo) / (1 + echo / refOffset);
     }
     return sum * RESONANCEFAC;
   }
-
-  // Gets a value from the circular buffer a given offset from the current index.
-  // Only supports negative offsets, as this system does not support forward-looking filters.
-  private float get(int offset) {
-    int index = bufferIndex + offset;
-    if (index < 0) {
-      index += buffer.length;
-    }
-    return buffer[index];
-  }
-
-  // Initialize tick and polarity arrays
-  private void initTicks(int rotations, int binLength) {
-    Random random = new Random();
-    // Establish this rotation
-    ArrayList<Integer> tickList = new ArrayList<Integer>();
-    ArrayList<Float> polarityList = new ArrayList<Float>();
-    // Loop through bins, adding jittered echoes
-    int bins = (int)(sampleRate / binLength);
-    for (int bin = 0; bin < bins; bin++) {
-      int binStart = bin * binLength;
-      // Randomly set offset within bin
-      int offset = random.nextInt(binLength);
-      // Set a random polarity
-      float polarity = random.nextInt(2) * 2 - 1;
-
-      float attenuation = 1+((binStart + offset) / refOffset);
-      // Add the delay to the tick list
-      tickList.add((int)(binStart+offset));
-      polarityList.add((float)((polarity / attenuation) * Math.pow(binLength / sampleRate, 0.45)));
-    }
-    // Add to collection
-    ticks.add(tickList);
-    polarities.add(polarityList);
-    // Check if stopping. If not, recur
-    if (rotations > 1) {
-      initTicks(rotations-1, binLength);
-    }
-  }
 }
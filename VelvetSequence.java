@@ -0,0 +1,97 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+// Velvet noise tick tables, shared read-only by every VelvetDelay with the same seed, sample rate,
+// bin length and rotation count. A sequence is generated the first time it is asked for and kept in a
+// bank, so delays only own their ring buffers, and a seed always gives the same ticks.
+// The bank keeps the most recently used sequences up to MAXBYTES. Delays hold on to the tables they
+// were built from, so an evicted sequence stays valid for them; asking for it again regenerates the
+// same ticks, only no longer shared with the older delays.
+class VelvetSequence {
+  static final long MAXBYTES = 32L << 20;
+  // Access-ordered, so iteration starts at the least recently used sequence
+  private static final LinkedHashMap<RoomKey, VelvetSequence> bank = new LinkedHashMap<RoomKey, VelvetSequence>(16, 0.75f, true);
+  private static long bankBytes;
+
+  // Packed tick table. Rotation r owns the entries [r * ticksPerRotation, (r+1) * ticksPerRotation),
+  // sorted by ascending offset, with the signed and attenuated gain of each tick alongside it.
+  // Never written after construction.
+  final int[] tickOffsets;
+  final float[] tickGains;
+  final int ticksPerRotation;
+  final int rotations;
+  // What the table was generated from, which identifies it along with the sample rate and rotations
+  final int seed;
+  final int binLength;
+
+  private VelvetSequence(int seed, float sampleRate, int binLength, int rotations) {
+    this.seed = seed;
+    this.binLength = binLength;
+    int bins = (int)(sampleRate / binLength);
+    float refOffset = (VelvetDelay.REFDIST / VelvetDelay.SOUNDSPD) * sampleRate;
+    double scale = Math.pow(binLength / sampleRate, 0.45);
+    this.rotations = rotations;
+    this.ticksPerRotation = bins;
+    this.tickOffsets = new int[rotations * bins];
+    this.tickGains = new float[rotations * bins];
+    int i = 0;
+    for (int rotation = 0; rotation < rotations; rotation++) {
+      // Each rotation has its own stream, so adding rotations leaves the existing ones unchanged
+      Random random = new Random(seed * 0x9E3779B97F4A7C15L + rotation);
+      // Loop through bins, adding jittered echoes
+      for (int bin = 0; bin < bins; bin++) {
+        int binStart = bin * binLength;
+        // Randomly set offset within bin
+        int offset = random.nextInt(binLength);
+        // Set a random polarity
+        float polarity = random.nextInt(2) * 2 - 1;
+
+        float attenuation = 1+((binStart + offset) / refOffset);
+        // Add the delay to the tick table
+        tickOffsets[i] = binStart + offset;
+        tickGains[i] = (float)((polarity / attenuation) * scale);
+        i++;
+      }
+    }
+  }
+
+  // The shared sequence for these parameters, generating it on first use.
+  public static VelvetSequence get(int seed, float sampleRate, int binLength, int rotations) {
+    RoomKey key = RoomKey.sequence(seed, sampleRate, binLength, rotations);
+    synchronized (bank) {
+      VelvetSequence sequence = bank.get(key);
+      if (sequence == null) {
+        sequence = new VelvetSequence(seed, sampleRate, binLength, rotations);
+        bank.put(key, sequence);
+        bankBytes += sequence.bytes();
+        // The newest sequence is kept even if it alone is over the limit
+        Iterator<VelvetSequence> eldest = bank.values().iterator();
+        while (bankBytes > MAXBYTES && bank.size() > 1) {
+          bankBytes -= eldest.next().bytes();
+          eldest.remove();
+        }
+      }
+      return sequence;
+    }
+  }
+
+  // Memory held by the tick table.
+  public long bytes() {
+    return 8L * tickOffsets.length;
+  }
+
+  // Number of sequences in the bank.
+  public static int size() {
+    synchronized (bank) {
+      return bank.size();
+    }
+  }
+
+  // Memory held by the sequences in the bank.
+  public static long getBytes() {
+    synchronized (bank) {
+      return bankBytes;
+    }
+  }
+}
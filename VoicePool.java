@@ -0,0 +1,207 @@
+import beads.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A fixed set of reverb voices, all in the same room, allocated up front so that emitters can take one
+// at spawn time without allocating. Every voice runs on the same shared velvet sequence, so each one
+// only owns its delay lines.
+// Each block, the audio thread pulls the sources of the active voices, spreads the voices over a
+// BlockWorkers pool, and sums their outputs. Free voices cost one state check per block.
+// When every voice is busy, acquire() steals the voice that has been ringing out the longest.
+class VoicePool extends UGen {
+  // Peak level below which a released voice counts as silent
+  static final float SILENCE = 1e-5f;
+  // Silent blocks before a released voice returns to the pool
+  static final int QUIETBLOCKS = 4;
+
+  private final ReverbVoice[] voices;
+  private final BlockWorkers workers;
+  // Voices being processed this block, and one task per slot
+  private final ReverbVoice[] active;
+  private final Runnable[] tasks;
+  private volatile long blocks;
+
+  // Statistics. The counts are written only by the audio thread and read from any thread.
+  private volatile int occupancy;
+  private volatile int peakOccupancy;
+  private final AtomicLong voiceSteals;
+  private final AtomicLong refusals;
+
+  public VoicePool(AudioContext context, int voices, RoomPreset preset, BlockWorkers workers) {
+    super(context, 0, 1);
+    this.workers = workers;
+    this.voices = new ReverbVoice[voices];
+    this.active = new ReverbVoice[voices];
+    this.tasks = new Runnable[voices];
+    this.voiceSteals = new AtomicLong();
+    this.refusals = new AtomicLong();
+    for (int v = 0; v < voices; v++) {
+      final int slot = v;
+      this.voices[v] = new ReverbVoice(this, new ReverbChain(context, preset));
+      this.tasks[v] = () -> active[slot].process();
+    }
+  }
+
+  // Takes a free voice, or steals the longest released one if there is none.
+  // Returns null when every voice is still being fed. Safe to call from any thread.
+  public ReverbVoice acquire(UGen source) {
+    for (ReverbVoice voice : voices) {
+      if (voice.state.compareAndSet(ReverbVoice.FREE, ReverbVoice.STARTING)) {
+        // The audio thread doesn't touch starting voices, so the reset can happen here
+        voice.chain.reset();
+        voice.quietBlocks = 0;
+        voice.source = source;
+        voice.acquisitions++;
+        voice.state.set(ReverbVoice.ACTIVE);
+        return voice;
+      }
+    }
+    while (true) {
+      ReverbVoice oldest = null;
+      for (ReverbVoice voice : voices) {
+        if (voice.state.get() == ReverbVoice.RELEASING && (oldest == null || voice.releasedAt < oldest.releasedAt)) {
+          oldest = voice;
+        }
+      }
+      if (oldest == null) {
+        refusals.incrementAndGet();
+        return null;
+      }
+      if (oldest.state.compareAndSet(ReverbVoice.RELEASING, ReverbVoice.STOLEN)) {
+        oldest.source = source;
+        oldest.acquisitions++;
+        voiceSteals.incrementAndGet();
+        return oldest;
+      }
+    }
+  }
+
+  void release(ReverbVoice voice) {
+    voice.source = null;
+    voice.releasedAt = blocks;
+    while (true) {
+      int state = voice.state.get();
+      if (state != ReverbVoice.ACTIVE && state != ReverbVoice.STOLEN) {
+        return;
+      }
+      if (voice.state.compareAndSet(state, ReverbVoice.RELEASING)) {
+        return;
+      }
+    }
+  }
+
+  public void calculateBuffer() {
+    process(bufOut[0], bufferSize);
+  }
+
+  // Runs every busy voice for one block and sums them into out.
+  public void process(float[] out, int n) {
+    int count = 0;
+    for (ReverbVoice voice : voices) {
+      int state = voice.state.get();
+      if (state == ReverbVoice.FREE || state == ReverbVoice.STARTING) {
+        continue;
+      }
+      if (state == ReverbVoice.STOLEN && voice.state.compareAndSet(ReverbVoice.STOLEN, ReverbVoice.ACTIVE)) {
+        voice.chain.reset();
+        voice.quietBlocks = 0;
+        state = ReverbVoice.ACTIVE;
+      }
+      UGen source = voice.source;
+      if (state == ReverbVoice.RELEASING) {
+        Arrays.fill(voice.input, 0);
+      } else if (source != null) {
+        // Sources belong to the Beads graph, so they are pulled here on the audio thread
+        source.update();
+        System.arraycopy(source.getOutBuffer(0), 0, voice.input, 0, n);
+      }
+      active[count++] = voice;
+    }
+
+    workers.run(tasks, count);
+
+    Arrays.fill(out, 0, n, 0);
+    for (int a = 0; a < count; a++) {
+      ReverbVoice voice = active[a];
+      float[] output = voice.output;
+      float peak = 0;
+      for (int i = 0; i < n; i++) {
+        out[i] += output[i];
+        peak = Math.max(peak, Math.abs(output[i]));
+      }
+      // A released voice that has rung out goes back to the pool, unless it was stolen meanwhile
+      if (voice.state.get() == ReverbVoice.RELEASING) {
+        voice.quietBlocks = peak < SILENCE ? voice.quietBlocks + 1 : 0;
+        if (voice.quietBlocks >= QUIETBLOCKS) {
+          voice.state.compareAndSet(ReverbVoice.RELEASING, ReverbVoice.FREE);
+        }
+      }
+      active[a] = null;
+    }
+    occupancy = count;
+    if (count > peakOccupancy) {
+      peakOccupancy = count;
+    }
+    blocks++;
+  }
+
+  public int getCapacity() {
+    return voices.length;
+  }
+
+  // Voices processed in the last block, including released ones still ringing out.
+  public int getOccupancy() {
+    return occupancy;
+  }
+
+  public int getPeakOccupancy() {
+    return peakOccupancy;
+  }
+
+  // Voices taken from another emitter's tail because the pool was full.
+  public long getVoiceSteals() {
+    return voiceSteals.get();
+  }
+
+  // acquire() calls that found every voice still being fed.
+  public long getRefusals() {
+    return refusals.get();
+  }
+
+  // Voices run by a different worker than the one they were dealt to.
+  public long getWorkerSteals() {
+    return workers.getSteals();
+  }
+
+  // Frees the delay lines of every voice, once the pool has been taken out of the graph.
+  // The workers are left to their owner.
+  public void close() {
+    for (ReverbVoice voice : voices) {
+      voice.chain.close();
+    }
+  }
+
+  public void setSize(int l, int w, int h) {
+    for (ReverbVoice voice : voices) {
+      voice.chain.setSize(l, w, h);
+    }
+  }
+
+  public void setFactor(float factor) {
+    for (ReverbVoice voice : voices) {
+      voice.chain.setFactor(factor);
+    }
+  }
+
+  public void setOpenness(float openness) {
+    for (ReverbVoice voice : voices) {
+      voice.chain.setOpenness(openness);
+    }
+  }
+
+  public void setDampingFrequency(float frequency) {
+    for (ReverbVoice voice : voices) {
+      voice.chain.setDampingFrequency(frequency);
+    }
+  }
+}
@@ -0,0 +1,420 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+
+// Drives every audio path for thousands of blocks after a warmup and counts the bytes allocated
+// meanwhile, as the ThreadMXBean reports them for the calling thread and any BlockWorkers helpers.
+// Steady-state paths (calculate() and the block process() of each component) must not allocate at
+// all; if one does, the run exits with status 1. Parameter changes are reported separately, in bytes
+// per block, as a few allocate by design (MaterialMixer recompiles its bank).
+//   java AllocationCheck [filter]
+// Only cases whose "component parameters" line contains the filter are run.
+class AllocationCheck {
+  static final int WARMUP = 10000;
+  static final int BLOCKS = 2000;
+  static final int BLOCK = BenchmarkSuite.DEFAULTBLOCK;
+  static final float SAMPLERATE = BenchmarkSuite.SAMPLERATE;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private final String filter;
+  private final ArrayList<String> failures = new ArrayList<String>();
+
+  AllocationCheck(String filter) {
+    this.filter = filter;
+  }
+
+  public static void main(String[] args) {
+    if (!THREADS.isThreadAllocatedMemorySupported()) {
+      System.out.println("This JVM can't count allocated bytes per thread");
+      System.exit(2);
+    }
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    AllocationCheck check = new AllocationCheck(args.length > 0 ? args[0] : null);
+    System.out.println("Steady state, " + BLOCKS + " blocks of " + BLOCK + " after " + WARMUP + " warmup blocks:");
+    check.steadyState();
+    System.out.println("Parameter changes:");
+    check.parameterChanges();
+    if (!check.failures.isEmpty()) {
+      System.out.println("Allocating steady-state paths: " + check.failures);
+      System.exit(1);
+    }
+  }
+
+  void steadyState() {
+    final float[] in = BenchmarkSuite.noise(BLOCK);
+    final float[] out = new float[BLOCK];
+
+    final BiquadState state = BenchmarkSuite.damping().register();
+    steady("BiquadState", "calculate", new Runnable() {
+      public void run() {
+        float sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+          sum += state.calculate(in[i]);
+        }
+        Bench.sink = sum;
+      }
+    });
+    steady("BiquadState", "process", new Runnable() {
+      public void run() {
+        state.process(in, out, BLOCK);
+      }
+    });
+
+    final BiquadBank bank = new BiquadBank(16);
+    bank.setCoefficients(BenchmarkSuite.damping());
+    final float[] lanes = BenchmarkSuite.noise(16 * BLOCK);
+    steady("BiquadBank", "lanes=16", new Runnable() {
+      public void run() {
+        bank.process(lanes, lanes, BLOCK);
+      }
+    });
+
+    final MaterialMixer mixer = mixer(4);
+    steady("MaterialMixer", "calculate materials=4", new Runnable() {
+      public void run() {
+        float sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+          sum += mixer.calculate(in[i]);
+        }
+        Bench.sink = sum;
+      }
+    });
+    steady("MaterialMixer", "process materials=4", new Runnable() {
+      public void run() {
+        mixer.process(in, out, BLOCK);
+      }
+    });
+
+    final VelvetDelay calculated = velvet();
+    steady("VelvetDelay", "calculate", new Runnable() {
+      public void run() {
+        float sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+          sum += calculated.calculate(in[i]);
+        }
+        Bench.sink = sum;
+      }
+    });
+    final VelvetDelay processed = velvet();
+    steady("VelvetDelay", "process", new Runnable() {
+      public void run() {
+        processed.process(in, out, BLOCK);
+      }
+    });
+
+    for (final int order : new int[] {1, 3}) {
+      final EarlyReflections reflections = reflections();
+      reflections.setOrder(order);
+      if (order > 1) {
+        reflections.setWallMaterial(EarlyReflections.FLOOR, BenchmarkSuite.damping());
+      }
+      steady("EarlyReflections", "process order=" + order + (order > 1 ? " materials" : ""), new Runnable() {
+        public void run() {
+          reflections.process(in, out, BLOCK);
+        }
+      });
+    }
+
+    final ModularReverb reverb = reverb();
+    steady("ModularReverb", "process", new Runnable() {
+      public void run() {
+        reverb.process(in, out, BLOCK);
+      }
+    });
+    final ModularReverb tiered = reverb();
+    tiered.setTiers(QualityTier.ladder(BenchmarkSuite.DEFAULTDENSITY, 1));
+    tiered.setTier(2);
+    steady("ModularReverb", "process tier=2", new Runnable() {
+      public void run() {
+        tiered.process(in, out, BLOCK);
+      }
+    });
+
+    final float[] loud = BenchmarkSuite.noise(BLOCK);
+    for (int i = 0; i < loud.length; i++) {
+      loud[i] *= 4;
+    }
+    final Ducker ducker = new Ducker(context());
+    steady("Ducker", "process", new Runnable() {
+      public void run() {
+        ducker.process(loud, out, BLOCK);
+      }
+    });
+    final Ducker limiter = new Ducker(context());
+    limiter.setLimiter(1, 256, 256, 256, 0.05f, 4);
+    steady("Ducker", "process limiter oversample=4", new Runnable() {
+      public void run() {
+        limiter.process(loud, out, BLOCK);
+      }
+    });
+
+    final PartitionedConvolver convolver = new PartitionedConvolver(BLOCK, (int)SAMPLERATE);
+    float[] impulse = BenchmarkSuite.noise((int)SAMPLERATE);
+    convolver.prepare(impulse, impulse.length);
+    convolver.swap();
+    steady("PartitionedConvolver", "process", new Runnable() {
+      public void run() {
+        convolver.process(in, out, BLOCK);
+      }
+    });
+
+    final ReverbChain chain = new ReverbChain(context(), new RoomPreset());
+    chain.setMeter(new Meter(SAMPLERATE, 1024, 64));
+    steady("ReverbChain", "process metered", new Runnable() {
+      public void run() {
+        chain.process(in, out, BLOCK);
+      }
+    });
+
+    final SwitchedReverb live = switched();
+    steady("SwitchedReverb", "process live", new Runnable() {
+      public void run() {
+        live.process(in, out, BLOCK);
+      }
+    });
+    final SwitchedReverb frozen = switched();
+    frozen.freeze();
+    while (!frozen.isFrozen()) {
+      frozen.process(in, out, BLOCK);
+    }
+    steady("SwitchedReverb", "process frozen", new Runnable() {
+      public void run() {
+        frozen.process(in, out, BLOCK);
+      }
+    });
+
+    BlockWorkers workers = new BlockWorkers(2);
+    final VoicePool pool = new VoicePool(context(), 8, new RoomPreset(), workers);
+    for (int v = 0; v < 4; v++) {
+      System.arraycopy(in, 0, pool.acquire(null).getInput(), 0, BLOCK);
+    }
+    steady("VoicePool", "capacity=8 active=4", new Runnable() {
+      public void run() {
+        pool.process(out, BLOCK);
+      }
+    });
+    final MultichannelRoom room = new MultichannelRoom(context(), 4, new RoomPreset(), workers);
+    final float[][] channelsIn = {in, in, in, in};
+    final float[][] channelsOut = new float[4][BLOCK];
+    steady("MultichannelRoom", "channels=4", new Runnable() {
+      public void run() {
+        room.process(channelsIn, channelsOut, BLOCK);
+      }
+    });
+
+    final ComponentMetrics metrics = new ComponentMetrics(SAMPLERATE);
+    final CpuGovernor governor = new CpuGovernor(SAMPLERATE, reflections(), reverb(), QualityTier.ladder(BenchmarkSuite.DEFAULTDENSITY, 1), metrics);
+    steady("CpuGovernor", "block", new Runnable() {
+      public void run() {
+        governor.block(1000, BLOCK);
+      }
+    });
+  }
+
+  void parameterChanges() {
+    final float[] in = BenchmarkSuite.noise(BLOCK);
+    final float[] out = new float[BLOCK];
+
+    final EarlyReflections resized = reflections();
+    change("EarlyReflections", "setSize every block", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        resized.setSize(20 + step % 40, 45, 9);
+        resized.process(in, out, BLOCK);
+      }
+    });
+    final EarlyReflections reordered = reflections();
+    reordered.setOrder(2);
+    change("EarlyReflections", "fadeToOrder every 10 blocks", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        if (step % 10 == 0) {
+          reordered.fadeToOrder(reordered.getOrder() == 1 ? 2 : 1);
+        }
+        reordered.process(in, out, BLOCK);
+      }
+    });
+
+    final ModularReverb opened = reverb();
+    change("ModularReverb", "setOpenness every block", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        opened.setOpenness((step % 10) / 10f);
+        opened.process(in, out, BLOCK);
+      }
+    });
+    final ModularReverb tiered = reverb();
+    tiered.setTiers(QualityTier.ladder(BenchmarkSuite.DEFAULTDENSITY, 1));
+    change("ModularReverb", "setTier every 10 blocks", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        if (step % 10 == 0) {
+          tiered.setTier((tiered.getTier() + 1) % tiered.getTiers());
+        }
+        tiered.process(in, out, BLOCK);
+      }
+    });
+
+    final BiquadComponent design = BenchmarkSuite.damping();
+    final BiquadState state = design.register();
+    change("BiquadComponent", "setFrequency every block", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        design.setFrequency(1000 + step % 4000);
+        state.process(in, out, BLOCK);
+      }
+    });
+
+    final ReverbChain chain = new ReverbChain(context(), new RoomPreset());
+    final ParameterMailbox mailbox = new ParameterMailbox(chain.reflections, chain.reverb, chain.damping);
+    change("ParameterMailbox", "size and damping every block", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        mailbox.setSize(20 + step % 40, 45, 9);
+        mailbox.setDampingFrequency(1000 + step % 4000);
+        mailbox.drain();
+        chain.process(in, out, BLOCK);
+      }
+    });
+
+    // Alternates between an easy and an overloaded machine, so the governor keeps stepping
+    final ComponentMetrics metrics = new ComponentMetrics(SAMPLERATE);
+    final EarlyReflections reflections = reflections();
+    final ModularReverb reverb = reverb();
+    final CpuGovernor governor = new CpuGovernor(SAMPLERATE, reflections, reverb, QualityTier.ladder(BenchmarkSuite.DEFAULTDENSITY, 2), metrics);
+    final long deadline = (long)(BLOCK / SAMPLERATE * 1e9);
+    change("CpuGovernor", "stepping between tiers", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        reverb.process(in, out, BLOCK);
+        reflections.process(in, out, BLOCK);
+        governor.block((step / 200) % 2 == 0 ? deadline / 10 : deadline * 2, BLOCK);
+      }
+    });
+
+    final MaterialMixer mixer = mixer(4);
+    change("MaterialMixer", "setWeight every block", new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        mixer.setWeight("material0", 1 + step % 4);
+        mixer.process(in, out, BLOCK);
+      }
+    });
+  }
+
+  // A steady-state path, which fails the run if it allocates at all.
+  void steady(String component, String parameters, Runnable block) {
+    if (!selected(component, parameters)) {
+      return;
+    }
+    long bytes = measure(block);
+    report(component, parameters, bytes, bytes == 0 ? "ok" : "ALLOCATES");
+    if (bytes != 0) {
+      failures.add(component + " " + parameters);
+    }
+  }
+
+  // A parameter-change path, which is only reported.
+  void change(String component, String parameters, Runnable block) {
+    if (!selected(component, parameters)) {
+      return;
+    }
+    long bytes = measure(block);
+    report(component, parameters, bytes, "");
+  }
+
+  private boolean selected(String component, String parameters) {
+    return filter == null || (component + " " + parameters).contains(filter);
+  }
+
+  // Bytes allocated over BLOCKS runs of block, after WARMUP runs.
+  private static long measure(Runnable block) {
+    for (int i = 0; i < WARMUP; i++) {
+      block.run();
+    }
+    long[] helpers = helperThreads();
+    // Reading the helpers allocates, so the calling thread is read inside those reads
+    long helpersBefore = sum(THREADS.getThreadAllocatedBytes(helpers));
+    long before = THREADS.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < BLOCKS; i++) {
+      block.run();
+    }
+    long after = THREADS.getCurrentThreadAllocatedBytes();
+    long helpersAfter = sum(THREADS.getThreadAllocatedBytes(helpers));
+    return after - before + helpersAfter - helpersBefore;
+  }
+
+  private static void report(String component, String parameters, long bytes, String verdict) {
+    System.out.println(String.format(Locale.US, "%-20s %-36s %12.1f B/block  %s",
+      component, parameters, bytes / (double)BLOCKS, verdict));
+  }
+
+  private static long[] helperThreads() {
+    ArrayList<Long> ids = new ArrayList<Long>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("BlockWorkers-")) {
+        ids.add(thread.getId());
+      }
+    }
+    long[] array = new long[ids.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = ids.get(i);
+    }
+    return array;
+  }
+
+  private static long sum(long[] values) {
+    long sum = 0;
+    for (long value : values) {
+      sum += Math.max(value, 0);
+    }
+    return sum;
+  }
+
+  static beads.AudioContext context() {
+    return ReverbChain.offlineContext(SAMPLERATE, BLOCK);
+  }
+
+  static EarlyReflections reflections() {
+    return BenchmarkSuite.reflections(BLOCK, BenchmarkSuite.DEFAULTROOM);
+  }
+
+  static ModularReverb reverb() {
+    EarlyReflections reflections = reflections();
+    ModularReverb reverb = new ModularReverb(context(), reflections.reverbWindow, BenchmarkSuite.DEFAULTDENSITY, 0.9f, BenchmarkSuite.damping());
+    reverb.setResonance(reflections.resonances);
+    return reverb;
+  }
+
+  static VelvetDelay velvet() {
+    EarlyReflections reflections = reflections();
+    VelvetDelay delay = new VelvetDelay((int)SAMPLERATE, ModularReverb.ROTATIONS, reflections.reverbWindow, Math.round(SAMPLERATE / BenchmarkSuite.DEFAULTDENSITY), SAMPLERATE);
+    delay.setResonances(reflections.resonances);
+    return delay;
+  }
+
+  static MaterialMixer mixer(int materials) {
+    MaterialMixer mixer = new MaterialMixer();
+    for (int m = 0; m < materials; m++) {
+      mixer.put("material" + m, new BiquadComponent(BiquadComponent.PEAK, SAMPLERATE, 200 + m * 900, 2, 1), 1 + m);
+    }
+    return mixer;
+  }
+
+  static SwitchedReverb switched() {
+    EarlyReflections reflections = reflections();
+    ModularReverb reverb = new ModularReverb(context(), reflections.reverbWindow, BenchmarkSuite.DEFAULTDENSITY, 0.9f, reflections.attenuation.getFilter());
+    reverb.setResonance(reflections.resonances);
+    return new SwitchedReverb(context(), reflections, reverb, 1);
+  }
+}
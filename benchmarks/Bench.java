@@ -0,0 +1,63 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+// Minimal timing harness for the benchmark suite.
+// JMH can't be used here: it refuses benchmark classes in the default package, and the sketch's
+// classes are package-private in the default package, so nothing in a named package can reach them.
+// Each operation is run for a warmup period, then timed, and the allocations of the timing thread
+// are read from the ThreadMXBean.
+class Bench {
+  static final long WARMUP_NANOS = 500000000L;
+  static final long MEASURE_NANOS = 1000000000L;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  // Written by operations so the JIT can't discard their results
+  static volatile float sink;
+
+  private final String filter;
+  private final StringBuilder csv;
+
+  Bench(String filter) {
+    this.filter = filter;
+    this.csv = new StringBuilder("component,parameters,ns_per_sample,bytes_per_op\n");
+  }
+
+  // Times op, which processes samplesPerOp samples per call, and reports ns/sample and bytes/op.
+  void measure(String component, String parameters, int samplesPerOp, Runnable op) {
+    if (filter != null && !(component + " " + parameters).contains(filter)) {
+      return;
+    }
+    runFor(op, WARMUP_NANOS);
+
+    long allocated = THREADS.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    long ops = runFor(op, MEASURE_NANOS);
+    long elapsed = System.nanoTime() - start;
+    allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+
+    double nsPerSample = elapsed / ((double)ops * samplesPerOp);
+    double bytesPerOp = allocated / (double)ops;
+    System.out.println(String.format(Locale.US, "%-18s %-52s %10.2f ns/sample %10.1f B/op",
+      component, parameters, nsPerSample, bytesPerOp));
+    csv.append(String.format(Locale.US, "%s,\"%s\",%.3f,%.1f%n", component, parameters, nsPerSample, bytesPerOp));
+  }
+
+  String csv() {
+    return csv.toString();
+  }
+
+  // Runs op repeatedly for at least the given time, checking the clock every few calls.
+  private static long runFor(Runnable op, long nanos) {
+    long ops = 0;
+    long end = System.nanoTime() + nanos;
+    do {
+      for (int i = 0; i < 16; i++) {
+        op.run();
+      }
+      ops += 16;
+    } while (System.nanoTime() < end);
+    return ops;
+  }
+}
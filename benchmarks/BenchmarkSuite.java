@@ -0,0 +1,350 @@
+import beads.*;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+// Benchmarks every DSP component across the parameters that drive its cost:
+// velvet density, rotations, room dimensions (which widen the reverb window) and block size.
+// Usage: java BenchmarkSuite [filter] [--csv=results.csv]
+// Only cases whose "component parameters" line contains the filter are run.
+class BenchmarkSuite {
+  static final float SAMPLERATE = 44100;
+  static final int[] DENSITIES = {100, 200, 400, 800};
+  static final int[] ROTATIONS = {1, 8, 23, 64};
+  static final int[] BLOCKS = {64, 512, 2048};
+  static final int[] LOOKAHEADS = {16, 256, 4096, 65536};
+  static final int[][] ROOMS = {{6, 8, 8}, {20, 45, 9}, {200, 120, 90}};
+  static final int DEFAULTDENSITY = 200;
+  static final int DEFAULTBLOCK = 512;
+  static final int[] DEFAULTROOM = {20, 45, 9};
+
+  public static void main(String[] args) throws IOException {
+    String filter = null;
+    String csvPath = null;
+    for (String arg : args) {
+      if (arg.startsWith("--csv=")) {
+        csvPath = arg.substring(6);
+      } else {
+        filter = arg;
+      }
+    }
+    Bench bench = new Bench(filter);
+
+    benchVelvetDelay(bench);
+    benchEarlyReflections(bench);
+    benchModularReverb(bench);
+    benchDucker(bench);
+    benchBiquad(bench);
+    benchMaterialMixer(bench);
+    benchVoicePool(bench);
+
+    if (csvPath != null) {
+      FileWriter writer = new FileWriter(csvPath);
+      try {
+        writer.write(bench.csv());
+      } finally {
+        writer.close();
+      }
+    }
+  }
+
+  static void benchVelvetDelay(Bench bench) {
+    for (int[] room : ROOMS) {
+      for (int density : DENSITIES) {
+        velvetCase(bench, room, density, ModularReverb.ROTATIONS, 1);
+      }
+    }
+    for (int rotations : ROTATIONS) {
+      velvetCase(bench, DEFAULTROOM, DEFAULTDENSITY, rotations, 1);
+    }
+    for (int block : BLOCKS) {
+      velvetCase(bench, DEFAULTROOM, DEFAULTDENSITY, ModularReverb.ROTATIONS, block);
+    }
+  }
+
+  // block == 1 times the per-sample calculate() path, anything else times process().
+  static void velvetCase(Bench bench, int[] room, int density, int rotations, final int block) {
+    EarlyReflections reflections = reflections(DEFAULTBLOCK, room);
+    final VelvetDelay delay = new VelvetDelay((int)SAMPLERATE, rotations, reflections.reverbWindow, Math.round(SAMPLERATE / density), SAMPLERATE);
+    delay.setResonances(reflections.resonances);
+    final float[] in = noise(Math.max(block, 1024));
+    final float[] out = new float[block];
+    String parameters = room(room) + " density=" + density + " rotations=" + rotations;
+    if (block == 1) {
+      bench.measure("VelvetDelay.calc", parameters, in.length, new Runnable() {
+        public void run() {
+          float sum = 0;
+          for (int i = 0; i < in.length; i++) {
+            sum += delay.calculate(in[i]);
+          }
+          Bench.sink = sum;
+        }
+      });
+    } else {
+      bench.measure("VelvetDelay.proc", parameters + " block=" + block, block, new Runnable() {
+        public void run() {
+          delay.process(in, out, block);
+          Bench.sink = out[0];
+        }
+      });
+    }
+  }
+
+  static void benchEarlyReflections(Bench bench) {
+    for (int[] room : ROOMS) {
+      for (final int block : BLOCKS) {
+        final EarlyReflections reflections = reflections(block, room);
+        final float[] in = noise(block);
+        final float[] out = new float[block];
+        bench.measure("EarlyReflections", room(room) + " block=" + block, block, new Runnable() {
+          public void run() {
+            reflections.process(in, out, block);
+            Bench.sink = out[0];
+          }
+        });
+      }
+    }
+    // A slider drag: a new size every block, so several delay sets crossfade at once
+    final EarlyReflections reflections = reflections(DEFAULTBLOCK, DEFAULTROOM);
+    final float[] in = noise(DEFAULTBLOCK);
+    final float[] out = new float[DEFAULTBLOCK];
+    bench.measure("EarlyReflections", "resized every block=" + DEFAULTBLOCK, DEFAULTBLOCK, new Runnable() {
+      int step;
+      public void run() {
+        step++;
+        reflections.setSize(DEFAULTROOM[0] + step % 40, DEFAULTROOM[1], DEFAULTROOM[2]);
+        reflections.process(in, out, DEFAULTBLOCK);
+        Bench.sink = out[0];
+      }
+    });
+    // Image sources: cost against order, with and without wall materials
+    for (int order = 1; order <= ImageSources.MAXORDER; order++) {
+      imageCase(bench, order, false);
+      imageCase(bench, order, true);
+    }
+  }
+
+  static void imageCase(Bench bench, int order, boolean materials) {
+    final EarlyReflections reflections = reflections(DEFAULTBLOCK, DEFAULTROOM);
+    reflections.setOrder(order);
+    if (materials) {
+      for (int wall = 0; wall <= EarlyReflections.RIGHT; wall++) {
+        reflections.setWallMaterial(wall, damping());
+      }
+    }
+    final float[] in = noise(DEFAULTBLOCK);
+    final float[] out = new float[DEFAULTBLOCK];
+    bench.measure("EarlyReflections", "order=" + order + " taps=" + ImageSources.taps(order)
+      + (materials ? " materials" : ""), DEFAULTBLOCK, new Runnable() {
+      public void run() {
+        reflections.process(in, out, DEFAULTBLOCK);
+        Bench.sink = out[0];
+      }
+    });
+  }
+
+  static void benchModularReverb(Bench bench) {
+    for (int[] room : ROOMS) {
+      for (int density : DENSITIES) {
+        reverbCase(bench, room, density, ModularReverb.ROTATIONS, DEFAULTBLOCK);
+      }
+    }
+    for (int rotations : ROTATIONS) {
+      reverbCase(bench, DEFAULTROOM, DEFAULTDENSITY, rotations, DEFAULTBLOCK);
+    }
+    for (int block : BLOCKS) {
+      reverbCase(bench, DEFAULTROOM, DEFAULTDENSITY, ModularReverb.ROTATIONS, block);
+    }
+    // The CpuGovernor's quality ladder, richest first, and the cost of crossfading between tiers
+    QualityTier[] ladder = QualityTier.ladder(DEFAULTDENSITY, 1);
+    for (int tier = 0; tier < ladder.length; tier++) {
+      tierCase(bench, ladder, tier);
+    }
+    tierCase(bench, ladder, -1);
+  }
+
+  // tier == -1 switches between the top two tiers every tenth of a second, so a crossfade is always running.
+  static void tierCase(Bench bench, QualityTier[] ladder, final int tier) {
+    AudioContext context = ReverbChain.offlineContext(SAMPLERATE, DEFAULTBLOCK);
+    EarlyReflections reflections = reflections(DEFAULTBLOCK, DEFAULTROOM);
+    final ModularReverb reverb = new ModularReverb(context, reflections.reverbWindow, DEFAULTDENSITY, 0.9f, damping());
+    reverb.setResonance(reflections.resonances);
+    reverb.setTiers(ladder);
+    reverb.setTier(tier);
+    reverb.reset();
+    final float[] in = noise(DEFAULTBLOCK);
+    final float[] out = new float[DEFAULTBLOCK];
+    String parameters = tier < 0 ? "tiers 0/1 switched every " + (int)(SAMPLERATE / 10) + " samples" : "tier=" + tier + " " + ladder[tier];
+    bench.measure("ModularReverb", parameters, DEFAULTBLOCK, new Runnable() {
+      int samples;
+      public void run() {
+        if (tier < 0) {
+          samples += DEFAULTBLOCK;
+          if (samples >= SAMPLERATE / 10) {
+            samples = 0;
+            reverb.setTier(1 - reverb.getTier());
+          }
+        }
+        reverb.process(in, out, DEFAULTBLOCK);
+        Bench.sink = out[0];
+      }
+    });
+  }
+
+  static void reverbCase(Bench bench, int[] room, int density, int rotations, final int block) {
+    AudioContext context = ReverbChain.offlineContext(SAMPLERATE, block);
+    EarlyReflections reflections = reflections(block, room);
+    final ModularReverb reverb = new ModularReverb(context, reflections.reverbWindow, density, rotations, 0.9f, damping());
+    reverb.setResonance(reflections.resonances);
+    final float[] in = noise(block);
+    final float[] out = new float[block];
+    bench.measure("ModularReverb", room(room) + " density=" + density + " rotations=" + rotations + " block=" + block, block, new Runnable() {
+      public void run() {
+        reverb.process(in, out, block);
+        Bench.sink = out[0];
+      }
+    });
+  }
+
+  static void benchDucker(Bench bench) {
+    for (final int block : BLOCKS) {
+      final Ducker ducker = new Ducker(ReverbChain.offlineContext(SAMPLERATE, block));
+      // Loud enough to keep the ducker working
+      final float[] in = noise(block);
+      for (int i = 0; i < in.length; i++) {
+        in[i] *= 4;
+      }
+      final float[] out = new float[block];
+      bench.measure("Ducker", "block=" + block, block, new Runnable() {
+        public void run() {
+          ducker.process(in, out, block);
+          Bench.sink = out[0];
+        }
+      });
+    }
+    // The sliding minimum should keep the limiter's cost flat as the look-ahead grows
+    for (int oversample : new int[] {1, 4}) {
+      for (int lookAhead : LOOKAHEADS) {
+        limiterCase(bench, lookAhead, oversample);
+      }
+    }
+  }
+
+  static void limiterCase(Bench bench, int lookAhead, int oversample) {
+    final Ducker limiter = new Ducker(ReverbChain.offlineContext(SAMPLERATE, DEFAULTBLOCK));
+    limiter.setLimiter(1, lookAhead, lookAhead, lookAhead, 0.05f, oversample);
+    final float[] in = noise(DEFAULTBLOCK);
+    for (int i = 0; i < in.length; i++) {
+      in[i] *= 4;
+    }
+    final float[] out = new float[DEFAULTBLOCK];
+    bench.measure("Ducker.limit", "lookAhead=" + lookAhead + " oversample=" + oversample, DEFAULTBLOCK, new Runnable() {
+      public void run() {
+        limiter.process(in, out, DEFAULTBLOCK);
+        Bench.sink = out[0];
+      }
+    });
+  }
+
+  static void benchBiquad(Bench bench) {
+    final BiquadState state = damping().register();
+    final float[] samples = noise(1024);
+    bench.measure("Biquad.calculate", "", samples.length, new Runnable() {
+      public void run() {
+        float sum = 0;
+        for (int i = 0; i < samples.length; i++) {
+          sum += state.calculate(samples[i]);
+        }
+        Bench.sink = sum;
+      }
+    });
+    for (final int block : BLOCKS) {
+      final float[] in = noise(block);
+      final float[] out = new float[block];
+      bench.measure("Biquad.process", "block=" + block, block, new Runnable() {
+        public void run() {
+          state.process(in, out, block);
+          Bench.sink = out[0];
+        }
+      });
+    }
+    for (final int lanes : new int[] {16, 256}) {
+      final BiquadBank biquads = new BiquadBank(lanes);
+      biquads.setCoefficients(damping());
+      final float[] in = noise(lanes * DEFAULTBLOCK);
+      final float[] out = new float[in.length];
+      bench.measure("BiquadBank", "lanes=" + lanes + " block=" + DEFAULTBLOCK, in.length, new Runnable() {
+        public void run() {
+          biquads.process(in, out, DEFAULTBLOCK);
+          Bench.sink = out[0];
+        }
+      });
+    }
+  }
+
+  static void benchMaterialMixer(Bench bench) {
+    for (int materials : new int[] {1, 4, 8, 16}) {
+      final MaterialMixer mixer = new MaterialMixer();
+      for (int m = 0; m < materials; m++) {
+        mixer.put("material" + m, new BiquadComponent(BiquadComponent.PEAK, SAMPLERATE, 200 + m * 900, 2, 1), 1 + m);
+      }
+      final float[] samples = noise(1024);
+      bench.measure("MaterialMixer", "materials=" + materials, samples.length, new Runnable() {
+        public void run() {
+          float sum = 0;
+          for (int i = 0; i < samples.length; i++) {
+            sum += mixer.calculate(samples[i]);
+          }
+          Bench.sink = sum;
+        }
+      });
+      final float[] out = new float[DEFAULTBLOCK];
+      bench.measure("MaterialMixer", "materials=" + materials + " block=" + DEFAULTBLOCK, DEFAULTBLOCK, new Runnable() {
+        public void run() {
+          mixer.process(samples, out, DEFAULTBLOCK);
+          Bench.sink = out[0];
+        }
+      });
+    }
+  }
+
+  // A pool of 64 voices with a varying number in use. Idle voices should add nothing.
+  static void benchVoicePool(Bench bench) {
+    final VoicePool pool = new VoicePool(ReverbChain.offlineContext(SAMPLERATE, DEFAULTBLOCK), 64, new RoomPreset(), new BlockWorkers(Runtime.getRuntime().availableProcessors() - 1));
+    final float[] out = new float[DEFAULTBLOCK];
+    float[] in = noise(DEFAULTBLOCK);
+    int acquired = 0;
+    for (int voices : new int[] {0, 1, 8, 64}) {
+      for (; acquired < voices; acquired++) {
+        System.arraycopy(in, 0, pool.acquire(null).getInput(), 0, DEFAULTBLOCK);
+      }
+      bench.measure("VoicePool", "capacity=64 active=" + voices, DEFAULTBLOCK, new Runnable() {
+        public void run() {
+          pool.process(out, DEFAULTBLOCK);
+          Bench.sink = out[0];
+        }
+      });
+    }
+  }
+
+  static EarlyReflections reflections(int block, int[] room) {
+    return new EarlyReflections(ReverbChain.offlineContext(SAMPLERATE, block), room[0], room[1], room[2], 0.5f, damping());
+  }
+
+  static BiquadComponent damping() {
+    return new BiquadComponent(BiquadComponent.LOWPASS, SAMPLERATE, 5000, 1, 1);
+  }
+
+  static float[] noise(int n) {
+    Random random = new Random(n);
+    float[] samples = new float[n];
+    for (int i = 0; i < n; i++) {
+      samples[i] = random.nextFloat() - 0.5f;
+    }
+    return samples;
+  }
+
+  static String room(int[] room) {
+    return "room=" + room[0] + "x" + room[1] + "x" + room[2];
+  }
+}
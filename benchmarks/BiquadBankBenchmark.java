@@ -0,0 +1,58 @@
+import java.util.Random;
+
+// Compares a BiquadBank against the same number of independent BiquadStates.
+// Run with the sketch classes and beads.jar on the classpath:
+//   java BiquadBankBenchmark [lanes] [blockSize]
+class BiquadBankBenchmark {
+  public static void main(String[] args){
+    int lanes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int block = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+    float sampleRate = 44100;
+    Random random = new Random(1);
+
+    // Every lane gets its own damping frequency.
+    BiquadComponent[] designs = new BiquadComponent[lanes];
+    BiquadState[] states = new BiquadState[lanes];
+    BiquadBank bank = new BiquadBank(lanes);
+    for(int l = 0; l < lanes; l++){
+      designs[l] = new BiquadComponent(BiquadComponent.LOWPASS, sampleRate, 200 + random.nextFloat() * 15000, 1, 1);
+      states[l] = designs[l].register();
+      bank.setCoefficients(l, designs[l]);
+    }
+
+    float[][] channels = new float[lanes][block];
+    float[] interleaved = new float[lanes * block];
+    for(int l = 0; l < lanes; l++){
+      for(int i = 0; i < block; i++){
+        channels[l][i] = random.nextFloat() - 0.5f;
+        interleaved[i * lanes + l] = channels[l][i];
+      }
+    }
+    float[] scratch = new float[block];
+    float[] bankOut = new float[lanes * block];
+
+    long samples = 0;
+    for(int round = 0; round < 5; round++){
+      int blocks = 2000;
+      long start = System.nanoTime();
+      for(int b = 0; b < blocks; b++){
+        for(int l = 0; l < lanes; l++){
+          states[l].process(channels[l], scratch, block);
+        }
+      }
+      long scalar = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for(int b = 0; b < blocks; b++){
+        bank.process(interleaved, bankOut, block);
+      }
+      long banked = System.nanoTime() - start;
+
+      samples = (long)blocks * block * lanes;
+      System.out.printf("round %d: scalar %.2f ns/sample, bank %.2f ns/sample%n",
+        round, scalar / (double)samples, banked / (double)samples);
+    }
+    // Keep the results alive
+    System.out.println(scratch[0] + bankOut[0]);
+  }
+}
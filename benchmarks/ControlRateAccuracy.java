@@ -0,0 +1,78 @@
+import java.util.Locale;
+
+// Checks the control-rate gains of EarlyReflections and VelvetDelay against the per-sample reference
+// (control block 1), and times each control block size.
+// Every chain is built from the same cached tap tables, so the only difference is the control rate.
+// The room is resized partway through, so the size and crossfade ramps are covered as well.
+// Exits with status 1 if the default control block falls below MINSNR.
+//   java ControlRateAccuracy [seconds]
+class ControlRateAccuracy {
+  static final int[] CONTROLBLOCKS = {1, 8, 16, 32, 64, 128};
+  static final double MINSNR = 40;
+
+  public static void main(String[] args) {
+    float seconds = args.length > 0 ? Float.parseFloat(args[0]) : 4;
+    int block = BenchmarkSuite.DEFAULTBLOCK;
+    int blocks = (int)(seconds * BenchmarkSuite.SAMPLERATE / block);
+    float[] input = BenchmarkSuite.noise(blocks * block);
+    RoomCache cache = new RoomCache(16L << 20);
+
+    float[] reference = render(cache, 1, input, block);
+    Bench bench = new Bench(null);
+    boolean failed = false;
+    for (int controlBlock : CONTROLBLOCKS) {
+      float[] output = render(cache, controlBlock, input, block);
+      double signal = 0;
+      double error = 0;
+      float worst = 0;
+      for (int i = 0; i < output.length; i++) {
+        float difference = output[i] - reference[i];
+        signal += reference[i] * reference[i];
+        error += difference * difference;
+        worst = Math.max(worst, Math.abs(difference));
+      }
+      double snr = error == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / error);
+      System.out.println(String.format(Locale.US, "control=%-4d SNR %8.1f dB, max error %.6f", controlBlock, snr, worst));
+      if (controlBlock == VelvetDelay.CONTROLBLOCK && snr < MINSNR) {
+        failed = true;
+      }
+
+      final ReverbChain chain = chain(cache, controlBlock, block);
+      final float[] in = BenchmarkSuite.noise(block);
+      final float[] out = new float[block];
+      bench.measure("ReverbChain", "control=" + controlBlock + " block=" + block, block, new Runnable() {
+        public void run() {
+          chain.process(in, out, in.length);
+          Bench.sink = out[0];
+        }
+      });
+    }
+    if (failed) {
+      System.out.println("Control block " + VelvetDelay.CONTROLBLOCK + " is below " + MINSNR + " dB");
+      System.exit(1);
+    }
+  }
+
+  static ReverbChain chain(RoomCache cache, int controlBlock, int block) {
+    RoomPreset preset = new RoomPreset();
+    ReverbChain chain = new ReverbChain(ReverbChain.offlineContext(BenchmarkSuite.SAMPLERATE, block), preset, cache);
+    chain.setControlBlock(controlBlock);
+    return chain;
+  }
+
+  static float[] render(RoomCache cache, int controlBlock, float[] input, int block) {
+    ReverbChain chain = chain(cache, controlBlock, block);
+    float[] output = new float[input.length];
+    float[] in = new float[block];
+    float[] out = new float[block];
+    for (int off = 0; off < input.length; off += block) {
+      if (off == input.length / 2 / block * block) {
+        chain.setSize(60, 30, 20);
+      }
+      System.arraycopy(input, off, in, 0, block);
+      chain.process(in, out, block);
+      System.arraycopy(out, 0, output, off, block);
+    }
+    return output;
+  }
+}
@@ -0,0 +1,132 @@
+import java.util.Locale;
+import java.util.Random;
+
+// Checks that a frozen SwitchedReverb stays frozen while a CpuGovernor steps the live engine down its
+// ladder: a quality step changes what the live engine costs, not the room, so it must not hand back to
+// the live engine. Then checks that a thaw in the middle of a tail carries it on at the level of a
+// reverb that was never frozen, rather than dropping it.
+// Exits with status 1 if the reverb thaws, or the thawed tail is more than 3 dB off.
+//   java FreezeCheck
+class FreezeCheck {
+  static final int BLOCK = BenchmarkSuite.DEFAULTBLOCK;
+  static final float SAMPLERATE = BenchmarkSuite.SAMPLERATE;
+  // Blocks to wait for the impulse response before giving up
+  static final int MAXBLOCKS = 20000;
+  // Blocks of noise and of silence in the input of the thaw check
+  static final int BURST = 100;
+  static final int GAP = 100;
+
+  static float[] in = BenchmarkSuite.noise(BLOCK);
+  static float[] out = new float[BLOCK];
+
+  public static void main(String[] args) {
+    stepping();
+    thawing();
+  }
+
+  static void stepping() {
+    EarlyReflections reflections = reflections();
+    ModularReverb reverb = reverb(reflections);
+    CpuGovernor governor = new CpuGovernor(SAMPLERATE, reflections, reverb,
+      QualityTier.ladder(BenchmarkSuite.DEFAULTDENSITY, 2), new ComponentMetrics(SAMPLERATE));
+    SwitchedReverb switched = new SwitchedReverb(ReverbChain.offlineContext(SAMPLERATE, BLOCK), reflections, reverb, 1);
+
+    switched.freeze();
+    if (!run(switched, null, 0, MAXBLOCKS)) {
+      System.out.println("Never froze  WRONG");
+      System.exit(1);
+    }
+    // Overloaded frames step the governor down every tier, changing the order of the reflections on the way
+    long overload = (long)(2 * BLOCK / SAMPLERATE * 1e9);
+    int blocks = (int)(4 * SAMPLERATE / BLOCK);
+    boolean frozen = run(switched, governor, overload, blocks) && switched.isFrozen();
+    System.out.println("Stepped to tier " + governor.getTier() + " (" + governor.getQuality() + "), order "
+      + reflections.getOrder() + ", " + (frozen ? "still frozen" : "thawed  WRONG"));
+    if (!frozen || governor.getTier() == 0) {
+      System.exit(1);
+    }
+  }
+
+  // Runs a frozen reverb next to a live one on bursts of noise, thaws it a little way into a gap, and
+  // compares the energy of both tails over the following blocks. The velvet ticks keep rotating in the
+  // live reverb, so the waveforms differ and only the level is compared.
+  static void thawing() {
+    EarlyReflections reflections = reflections();
+    ModularReverb reverb = reverb(reflections);
+    SwitchedReverb switched = new SwitchedReverb(ReverbChain.offlineContext(SAMPLERATE, BLOCK), reflections, reverb, 1);
+    EarlyReflections liveReflections = reflections();
+    ModularReverb liveReverb = reverb(liveReflections);
+    float[] live = new float[BLOCK];
+    float[] part = new float[BLOCK];
+    Random random = new Random(1);
+    float[] noise = new float[BLOCK];
+
+    switched.freeze();
+    int thawAt = -1;
+    double thawed = 0;
+    double reference = 0;
+    for (int b = 0; b < MAXBLOCKS; b++) {
+      boolean gap = b % (BURST + GAP) >= BURST;
+      for (int i = 0; i < BLOCK; i++) {
+        noise[i] = gap ? 0 : (float)random.nextGaussian() * 0.3f;
+      }
+      switched.process(noise, out, BLOCK);
+      liveReverb.process(noise, live, BLOCK);
+      liveReflections.process(noise, part, BLOCK);
+      if (thawAt < 0) {
+        // Thaw a tenth of the way into a gap, after the convolver has taken over a whole burst
+        if (switched.isFrozen() && b % (BURST + GAP) == BURST + GAP / 10 && b > 2 * (BURST + GAP)) {
+          switched.thaw();
+          thawAt = b;
+        } else if (!switched.isFrozen()) {
+          Thread.yield();
+        }
+        continue;
+      }
+      for (int i = 0; i < BLOCK; i++) {
+        thawed += out[i] * out[i];
+        reference += (live[i] + part[i]) * (live[i] + part[i]);
+      }
+      if (b - thawAt >= GAP / 2) {
+        break;
+      }
+    }
+    double db = 10 * Math.log10(thawed / reference);
+    boolean right = thawAt >= 0 && !switched.isFrozen() && Math.abs(db) <= 3;
+    System.out.println(String.format(Locale.US, "Tail after a thaw %.2f dB from the live reverb%s", db, right ? "" : "  WRONG"));
+    if (!right) {
+      System.exit(1);
+    }
+  }
+
+  static EarlyReflections reflections() {
+    return BenchmarkSuite.reflections(BLOCK, BenchmarkSuite.DEFAULTROOM);
+  }
+
+  static ModularReverb reverb(EarlyReflections reflections) {
+    ModularReverb reverb = new ModularReverb(ReverbChain.offlineContext(SAMPLERATE, BLOCK), reflections.reverbWindow,
+      BenchmarkSuite.DEFAULTDENSITY, 0.9f, reflections.attenuation.getFilter());
+    reverb.setResonance(reflections.resonances);
+    return reverb;
+  }
+
+  // Processes up to blocks blocks, telling governor (if any) each took nanos. Returns whether the reverb
+  // was frozen at the end; without a governor it stops as soon as it is.
+  static boolean run(SwitchedReverb switched, CpuGovernor governor, long nanos, int blocks) {
+    for (int b = 0; b < blocks; b++) {
+      switched.process(in, out, BLOCK);
+      if (governor != null) {
+        governor.block(nanos, BLOCK);
+        if (!switched.isFrozen()) {
+          return false;
+        }
+      } else if (switched.isFrozen()) {
+        return true;
+      } else {
+        // Give the capture thread time to render
+        Thread.yield();
+      }
+    }
+    return switched.isFrozen();
+  }
+}
@@ -0,0 +1,57 @@
+import java.util.Locale;
+
+// Checks that the look-ahead limiter never lets a peak through: every setting is fed noise, a
+// decreasing ramp of peaks (the worst case for the sliding minimum) and an increasing one, and the
+// output must stay at or under the threshold. Inter-sample peaks aren't checked, only samples.
+// Exits with status 1 if any output sample exceeds the threshold.
+//   java LimiterCheck
+class LimiterCheck {
+  static final float THRESHOLD = 1;
+  static final int[] LOOKAHEADS = {1, 4, 32, 256};
+  static final int[] SUSTAINS = {0, 4, 64};
+  static final int[] OVERSAMPLES = {1, 4};
+
+  public static void main(String[] args) {
+    int block = BenchmarkSuite.DEFAULTBLOCK;
+    int length = 64 * block;
+    float[][] inputs = {BenchmarkSuite.noise(length), new float[length], new float[length]};
+    for (int i = 0; i < length; i++) {
+      inputs[0][i] *= 4;
+      // Sawtooth ramps of peaks, down from 4 and up to 4, alternating in sign
+      float ramp = 1.5f + 0.05f * (i % 51);
+      inputs[1][i] = (i % 2 == 0 ? 1 : -1) * (5.5f - ramp);
+      inputs[2][i] = (i % 2 == 0 ? 1 : -1) * ramp;
+    }
+    String[] names = {"noise", "falling", "rising"};
+
+    boolean failed = false;
+    for (int oversample : OVERSAMPLES) {
+      for (int lookAhead : LOOKAHEADS) {
+        for (int sustain : SUSTAINS) {
+          for (int k = 0; k < inputs.length; k++) {
+            Ducker limiter = new Ducker(ReverbChain.offlineContext(BenchmarkSuite.SAMPLERATE, block));
+            limiter.setLimiter(THRESHOLD, lookAhead, lookAhead, sustain, 0.0001f, oversample);
+            float[] out = new float[block];
+            float peak = 0;
+            for (int off = 0; off < length; off += block) {
+              float[] in = new float[block];
+              System.arraycopy(inputs[k], off, in, 0, block);
+              limiter.process(in, out, block);
+              for (int i = 0; i < block; i++) {
+                peak = Math.max(peak, Math.abs(out[i]));
+              }
+            }
+            boolean over = peak > THRESHOLD;
+            failed |= over;
+            System.out.println(String.format(Locale.US, "lookAhead=%-4d sustain=%-3d oversample=%d %-8s peak %.4f%s",
+              lookAhead, sustain, oversample, names[k], peak, over ? "  OVER" : ""));
+          }
+        }
+      }
+    }
+    if (failed) {
+      System.out.println("The limiter let peaks over " + THRESHOLD + " through");
+      System.exit(1);
+    }
+  }
+}
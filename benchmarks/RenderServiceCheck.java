@@ -0,0 +1,96 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+// Starts a RenderService on a free port and checks the status of good and bad requests: client mistakes
+// (malformed queries, unknown or out of range parameters, unreadable audio) must answer 4xx and never
+// count as server failures, and a good render must come back at the expected length.
+// Exits with status 1 if any answer is wrong.
+//   java RenderServiceCheck
+class RenderServiceCheck {
+  static boolean failed;
+
+  public static void main(String[] args) throws Exception {
+    RenderService service = new RenderService(0, 1, 2, null);
+    service.start();
+    String base = "http://localhost:" + service.getPort();
+    float sampleRate = BenchmarkSuite.SAMPLERATE;
+    int frames = (int)sampleRate / 2;
+    byte[] wav = wav(BenchmarkSuite.noise(frames), sampleRate);
+    try {
+      expect(base + "/render?foo", "POST", wav, 400);
+      expect(base + "/render?length=30&foo", "POST", wav, 400);
+      expect(base + "/render?bogus=1", "POST", wav, 400);
+      expect(base + "/render?length=abc", "POST", wav, 400);
+      expect(base + "/render?preset=nowhere", "POST", wav, 400);
+      expect(base + "/render?length=600", "POST", wav, 400);
+      expect(base + "/render?density=100000", "POST", wav, 400);
+      expect(base + "/render?density=0", "POST", wav, 400);
+      expect(base + "/render?stereoWidth=NaN", "POST", wav, 400);
+      expect(base + "/render?rate=0", "POST", wav, 400);
+      expect(base + "/render", "POST", "not audio".getBytes("US-ASCII"), 415);
+      expect(base + "/render", "GET", null, 405);
+      byte[] out = expect(base + "/render?preset=booth&tail=0.25", "POST", wav, 200);
+      int expected = 44 + 2 * (frames + (int)(0.25f * sampleRate));
+      if (out == null || out.length != expected) {
+        System.out.println("Render came back at " + (out == null ? 0 : out.length) + " bytes, expected " + expected + "  WRONG");
+        failed = true;
+      }
+      expect(base + "/stats", "GET", null, 200);
+    } finally {
+      service.stop(0);
+    }
+
+    for (EndpointStats stats : service.getEndpoints()) {
+      System.out.println(stats);
+      if (stats.getFailed() != 0) {
+        System.out.println(stats.path + " counted client mistakes as failures  WRONG");
+        failed = true;
+      }
+    }
+    if (failed) {
+      System.exit(1);
+    }
+  }
+
+  // Sends a request and checks its status. Returns the body of a successful answer.
+  static byte[] expect(String url, String method, byte[] body, int status) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setChunkedStreamingMode(4096);
+      OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+    }
+    int code = connection.getResponseCode();
+    InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream answer = new ByteArrayOutputStream();
+    if (in != null) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        answer.write(buffer, 0, n);
+      }
+      in.close();
+    }
+    boolean right = code == status;
+    failed |= !right;
+    System.out.println(String.format("%-4s %-45s %d%s", method, url.substring(url.indexOf('/', 8)), code, right ? "" : "  WRONG, expected " + status));
+    return code < 400 ? answer.toByteArray() : null;
+  }
+
+  static byte[] wav(float[] samples, float sampleRate) {
+    byte[] header = RenderService.wavHeader(sampleRate, samples.length);
+    byte[] wav = new byte[header.length + samples.length * 2];
+    System.arraycopy(header, 0, wav, 0, header.length);
+    byte[] pcm = new byte[samples.length * 2];
+    ReverbStream.encode(samples, samples.length, pcm);
+    System.arraycopy(pcm, 0, wav, header.length, pcm.length);
+    return wav;
+  }
+}